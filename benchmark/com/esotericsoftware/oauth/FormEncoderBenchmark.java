@@ -0,0 +1,77 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares {@link FormEncoder} to {@link URLEncoder} for the values encoded for each token request. Requires JMH, which is not in
+ * libs, on the classpath. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormEncoderBenchmark {
+	@Param({"refreshToken", "code", "unicode"}) public String kind;
+
+	String value;
+	byte[] prefix = "refresh_token=".getBytes(OAuth.ascii), suffix = "&client_id=id&grant_type=refresh_token".getBytes(OAuth.ascii);
+
+	@Setup
+	public void setup () {
+		if (kind.equals("refreshToken"))
+			value = "1//0gLk3xXxXxXxXxXxXCgYIARAAGBASNwF-L9IrXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXx";
+		else if (kind.equals("code"))
+			value = "4/0AX4XfWh-xXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXxXx";
+		else
+			value = "pässwörd € & 😀";
+	}
+
+	/** What OAuth did before: encode to a String, concatenate, then encode the body to bytes. */
+	@Benchmark
+	public byte[] urlEncoder () throws UnsupportedEncodingException {
+		return ("refresh_token=" + URLEncoder.encode(value, "UTF-8") + "&client_id=id&grant_type=refresh_token").getBytes(OAuth.utf8);
+	}
+
+	/** What OAuth does now: encode directly into a body of the exact size. */
+	@Benchmark
+	public byte[] formEncoder () {
+		byte[] body = new byte[prefix.length + FormEncoder.length(value) + suffix.length];
+		System.arraycopy(prefix, 0, body, 0, prefix.length);
+		int offset = FormEncoder.encode(value, body, prefix.length);
+		System.arraycopy(suffix, 0, body, offset, suffix.length);
+		return body;
+	}
+}
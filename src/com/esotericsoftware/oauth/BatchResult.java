@@ -0,0 +1,99 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+
+/** The outcome for each token from {@link OAuth#refreshAll(java.util.Collection, int)}. */
+public class BatchResult {
+	private final IdentityHashMap<Token, Outcome> outcomes;
+	int refreshed, skipped, failed;
+	long elapsedMillis;
+
+	BatchResult (int size) {
+		outcomes = new IdentityHashMap<>(size);
+	}
+
+	void add (Token token, Outcome outcome) {
+		outcomes.put(token, outcome);
+		switch (outcome) {
+		case refreshed:
+			refreshed++;
+			break;
+		case skipped:
+			skipped++;
+			break;
+		case failed:
+			failed++;
+			break;
+		}
+	}
+
+	/** @return May be null if the token was not in the batch. */
+	public Outcome getOutcome (Token token) {
+		return outcomes.get(token);
+	}
+
+	/** @return The tokens that could not be refreshed. */
+	public List<Token> getFailed () {
+		ArrayList<Token> tokens = new ArrayList<>(failed);
+		for (Entry<Token, Outcome> entry : outcomes.entrySet())
+			if (entry.getValue() == Outcome.failed) tokens.add(entry.getKey());
+		return tokens;
+	}
+
+	/** @return The number of tokens that were refreshed. */
+	public int getRefreshed () {
+		return refreshed;
+	}
+
+	/** @return The number of tokens that did not need to be refreshed. */
+	public int getSkipped () {
+		return skipped;
+	}
+
+	/** @return The number of tokens that could not be refreshed. */
+	public int getFailedCount () {
+		return failed;
+	}
+
+	/** @return The time taken to refresh all the tokens. */
+	public long getElapsedMillis () {
+		return elapsedMillis;
+	}
+
+	public String toString () {
+		return refreshed + " refreshed, " + skipped + " skipped, " + failed + " failed in " + elapsedMillis + "ms";
+	}
+
+	static public enum Outcome {
+		/** The token was refreshed. */
+		refreshed,
+		/** The token did not need to be refreshed, or was refreshed by another thread. */
+		skipped,
+		/** The refresh failed or the token has no refresh token. */
+		failed
+	}
+}
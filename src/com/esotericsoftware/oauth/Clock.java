@@ -0,0 +1,96 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Provides the current time for expiration checks and scheduling. A different clock can be used, eg to simulate the passing of
+ * time in tests.
+ * @see OAuth#setClock(Clock) */
+abstract public class Clock {
+	/** Uses {@link System#currentTimeMillis()}. */
+	static public final Clock system = new Clock() {
+		public long millis () {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	/** Returns the current time in milliseconds since the epoch. */
+	abstract public long millis ();
+
+	/** Subclasses call this when the time changes other than by the passing of real time, eg a clock that is advanced manually in
+	 * tests. Threads waiting for a time, such as the {@link OAuth#scheduleRefresh(OAuth.Token) refresh scheduler}, then check the
+	 * time again rather than continuing to wait in real time. */
+	protected void changed () {
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+	void addListener (Runnable listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	void removeListener (Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	/** A clock that is updated periodically by a daemon thread, so reading the time is a single volatile read. The time may be
+	 * behind by up to the resolution, so a token expiring soon may be seen as not yet expired. */
+	static public class CoarseClock extends Clock implements Runnable {
+		private final long resolutionMillis;
+		private volatile long millis = System.currentTimeMillis();
+		private volatile boolean stopped;
+
+		public CoarseClock (long resolutionMillis) {
+			if (resolutionMillis <= 0) throw new IllegalArgumentException("resolutionMillis must be > 0: " + resolutionMillis);
+			this.resolutionMillis = resolutionMillis;
+
+			Thread thread = new Thread(this, "CoarseClock");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public long millis () {
+			return millis;
+		}
+
+		public void run () {
+			while (!stopped) {
+				try {
+					Thread.sleep(resolutionMillis);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				millis = System.currentTimeMillis();
+			}
+		}
+
+		/** Stops the thread that updates the time. */
+		public void stop () {
+			stopped = true;
+		}
+
+		public long getResolutionMillis () {
+			return resolutionMillis;
+		}
+	}
+}
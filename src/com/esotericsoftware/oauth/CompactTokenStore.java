@@ -0,0 +1,168 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.oauth.OAuth.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+import com.esotericsoftware.oauth.OAuth.Token.Snapshot;
+
+/** Stores a token for each key using a single byte array per token, rather than a {@link Token} with two strings. The access
+ * token string is created only when it is requested. This greatly reduces heap usage and garbage collection work when storing
+ * millions of tokens.
+ * <p>
+ * Each array contains the expiration as 8 bytes, then the access token and refresh token as UTF-8, each preceded by its length as
+ * 4 bytes (-1 for null). Arrays are never modified after being stored, so readers always see consistent values.
+ * @param <K> The key type, which must implement hashCode and equals. */
+public class CompactTokenStore<K> {
+	private final OAuth oauth;
+	private final ConcurrentHashMap<K, byte[]> tokens;
+	private final ConcurrentHashMap<K, Token> refreshing = new ConcurrentHashMap<>();
+
+	public CompactTokenStore (OAuth oauth) {
+		this(oauth, 16, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @param concurrencyLevel The estimated number of threads updating the store concurrently. */
+	public CompactTokenStore (OAuth oauth, int initialCapacity, int concurrencyLevel) {
+		this.oauth = oauth;
+		tokens = new ConcurrentHashMap<>(initialCapacity, 0.75f, concurrencyLevel);
+	}
+
+	public void put (K key, Token token) {
+		Snapshot snapshot = token.getSnapshot();
+		tokens.put(key, pack(snapshot.accessToken, snapshot.refreshToken, snapshot.expirationMillis));
+	}
+
+	public void put (K key, String accessToken, String refreshToken, long expirationMillis) {
+		tokens.put(key, pack(accessToken, refreshToken, expirationMillis));
+	}
+
+	/** Returns a new token with the stored values. Changes to the token are not stored unless {@link #put(Object, Token)} is
+	 * called.
+	 * @return May be null. */
+	public Token get (K key) {
+		byte[] bytes = tokens.get(key);
+		if (bytes == null) return null;
+		return unpack(bytes);
+	}
+
+	/** Refreshes the key's token, if necessary, and returns the access token. If multiple threads refresh the same key at the same
+	 * time, only one does the refresh and the others wait for it.
+	 * @return May be null if there is no token for the key. */
+	public String getAccessToken (K key) {
+		while (true) {
+			byte[] bytes = tokens.get(key);
+			if (bytes == null) return null;
+			if (expirationMillis(bytes) - oauth.getExpirationMarginMillis() >= oauth.getClock().millis()) return string(bytes, 8);
+
+			Token token = unpack(bytes), existing = refreshing.putIfAbsent(key, token);
+			if (existing != null) {
+				oauth.refreshAccessToken(existing);
+				return existing.getSnapshot().accessToken;
+			}
+			try {
+				// Another thread may have stored a refreshed token between the expiration check and winning the refresh.
+				if (tokens.get(key) != bytes) continue;
+				if (oauth.refreshAccessToken(token)) {
+					Snapshot snapshot = token.getSnapshot();
+					// Only store the refreshed values if the token was not replaced during the refresh.
+					tokens.replace(key, bytes, pack(snapshot.accessToken, snapshot.refreshToken, snapshot.expirationMillis));
+				}
+				return token.getSnapshot().accessToken;
+			} finally {
+				refreshing.remove(key, token);
+			}
+		}
+	}
+
+	/** @return The expiration, or 0 if there is no token for the key. */
+	public long getExpirationMillis (K key) {
+		byte[] bytes = tokens.get(key);
+		if (bytes == null) return 0;
+		return expirationMillis(bytes);
+	}
+
+	public boolean remove (K key) {
+		return tokens.remove(key) != null;
+	}
+
+	public boolean contains (K key) {
+		return tokens.containsKey(key);
+	}
+
+	public int size () {
+		return tokens.size();
+	}
+
+	public OAuth getOAuth () {
+		return oauth;
+	}
+
+	static private byte[] pack (String accessToken, String refreshToken, long expirationMillis) {
+		byte[] access = accessToken == null ? null : accessToken.getBytes(utf8);
+		byte[] refresh = refreshToken == null ? null : refreshToken.getBytes(utf8);
+		byte[] bytes = new byte[16 + (access == null ? 0 : access.length) + (refresh == null ? 0 : refresh.length)];
+		for (int i = 0; i < 8; i++)
+			bytes[i] = (byte)(expirationMillis >>> (56 - i * 8));
+		int offset = write(bytes, 8, access);
+		write(bytes, offset, refresh);
+		return bytes;
+	}
+
+	static private int write (byte[] bytes, int offset, byte[] value) {
+		int length = value == null ? -1 : value.length;
+		bytes[offset] = (byte)(length >>> 24);
+		bytes[offset + 1] = (byte)(length >>> 16);
+		bytes[offset + 2] = (byte)(length >>> 8);
+		bytes[offset + 3] = (byte)length;
+		if (value == null) return offset + 4;
+		System.arraycopy(value, 0, bytes, offset + 4, length);
+		return offset + 4 + length;
+	}
+
+	static private Token unpack (byte[] bytes) {
+		String accessToken = string(bytes, 8);
+		String refreshToken = string(bytes, 12 + Math.max(0, length(bytes, 8)));
+		Token token = new Token();
+		token.set(accessToken, refreshToken, expirationMillis(bytes));
+		return token;
+	}
+
+	static private long expirationMillis (byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (bytes[i] & 0xff);
+		return value;
+	}
+
+	static private int length (byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+			| (bytes[offset + 3] & 0xff);
+	}
+
+	static private String string (byte[] bytes, int offset) {
+		int length = length(bytes, offset);
+		if (length == -1) return null;
+		return new String(bytes, offset + 4, length, utf8);
+	}
+}
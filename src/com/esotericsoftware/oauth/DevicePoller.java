@@ -0,0 +1,245 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+import com.esotericsoftware.oauth.Transport.Response;
+
+/** Polls the token endpoint for pending device authorizations (RFC 8628). A single thread waits on a heap ordered by the next poll
+ * time, so there is no thread or timer per device. Polls are made using the transport when it is an {@link AsyncTransport}, else
+ * using the {@link OAuth#getExecutor() executor}. */
+class DevicePoller implements Runnable {
+	static private final long slowDownMillis = 5 * 1000, maxIntervalMillis = 60 * 1000;
+
+	private final OAuth oauth;
+	private final String category;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final PriorityQueue<Device> queue = new PriorityQueue<>();
+	private final Runnable wake = new Runnable() {
+		public void run () {
+			wake();
+		}
+	};
+	private Clock clock;
+
+	public DevicePoller (OAuth oauth, String category) {
+		this.oauth = oauth;
+		this.category = category;
+
+		oauth.newThread(this, "OAuth device: " + category).start();
+	}
+
+	/** Polls for the device after its interval. */
+	public void add (Device device) {
+		schedule(device, oauth.getClock().millis() + device.intervalMillis);
+	}
+
+	/** Causes the poller thread to check the time again. */
+	public void wake () {
+		lock.lock();
+		try {
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void schedule (Device device, long deadline) {
+		lock.lock();
+		try {
+			device.deadline = deadline;
+			queue.add(device);
+			if (queue.peek() == device) changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void run () {
+		while (true) {
+			Device device;
+			lock.lock();
+			try {
+				while (true) {
+					Clock clock = oauth.getClock();
+					if (clock != this.clock) {
+						// Listen for changes so a clock that is advanced manually wakes this thread.
+						if (this.clock != null) this.clock.removeListener(wake);
+						clock.addListener(wake);
+						this.clock = clock;
+					}
+					device = queue.peek();
+					if (device == null) {
+						changed.await();
+						continue;
+					}
+					if (device.task.isDone()) { // Cancelled.
+						queue.poll();
+						continue;
+					}
+					long delay = device.deadline - clock.millis();
+					if (delay > 0) {
+						changed.await(delay, TimeUnit.MILLISECONDS);
+						continue;
+					}
+					break;
+				}
+				queue.poll();
+			} catch (InterruptedException ex) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			if (oauth.getClock().millis() >= device.expirationMillis) {
+				device.task.failed(new IOException("Device authorization expired."));
+				continue;
+			}
+			try {
+				poll(device);
+			} catch (Throwable ex) {
+				if (ERROR) error(category, "Unable to poll device authorization.", ex);
+				backoff(device);
+			}
+		}
+	}
+
+	private void poll (final Device device) {
+		final byte[] body = oauth.deviceTokenBody(device.deviceCode);
+		final long requestMillis = oauth.getClock().millis();
+		final Transport transport = oauth.getTransport();
+		if (TRACE) trace(category, "Polling device authorization.");
+		if (transport instanceof AsyncTransport) {
+			((AsyncTransport)transport).post(oauth.getAccessTokenURL(), body, new Callback<Response>() {
+				public void completed (Response response) {
+					polled(device, requestMillis, response);
+				}
+
+				public void failed (Throwable ex) {
+					if (DEBUG) debug(category, "Device authorization poll failed.", ex);
+					backoff(device);
+				}
+			});
+			return;
+		}
+		oauth.getExecutor().execute(new Runnable() {
+			public void run () {
+				Response response;
+				try {
+					response = transport.post(oauth.getAccessTokenURL(), body);
+				} catch (Throwable ex) {
+					if (DEBUG) debug(category, "Device authorization poll failed.", ex);
+					backoff(device);
+					return;
+				}
+				polled(device, requestMillis, response);
+			}
+		});
+	}
+
+	void polled (Device device, long requestMillis, Response response) {
+		if (device.task.isDone()) return;
+		if (response.isSuccess()) {
+			device.backoffMillis = 0;
+			try {
+				oauth.exchanged(device.token, requestMillis, response);
+			} catch (Throwable ex) {
+				device.task.failed(ex);
+				return;
+			}
+			if (DEBUG) debug(category, "Device authorized.");
+			device.task.completed(device.token);
+			return;
+		}
+
+		TokenResponse error;
+		try {
+			error = TokenResponse.parse(response.body, TokenResponse.readError);
+		} catch (Throwable ex) {
+			// Usually an error page from a proxy or an unavailable server.
+			if (DEBUG) debug(category, "Device authorization poll failed: " + response, ex);
+			backoff(device);
+			return;
+		}
+		if ("authorization_pending".equals(error.error)) {
+			device.backoffMillis = 0;
+			schedule(device, oauth.getClock().millis() + device.intervalMillis);
+			return;
+		}
+		if ("slow_down".equals(error.error)) {
+			// The interval is increased for all later polls of this device.
+			device.backoffMillis = 0;
+			device.intervalMillis += slowDownMillis;
+			schedule(device, oauth.getClock().millis() + device.intervalMillis);
+			return;
+		}
+		if ("access_denied".equals(error.error) || "expired_token".equals(error.error)) {
+			device.task.failed(new IOException("Device authorization failed: " + error.error
+				+ (error.errorDescription != null ? ", " + error.errorDescription : "")));
+			return;
+		}
+		// Other errors may be transient, so polling continues until the device authorization expires.
+		if (error.error == null) {
+			if (DEBUG) debug(category, "Device authorization poll failed: " + response);
+		} else {
+			if (WARN) warn(category, "Device authorization poll failed: " + response + ", " + error.error
+				+ (error.errorDescription != null ? ", " + error.errorDescription : ""));
+		}
+		backoff(device);
+	}
+
+	/** Polls again later after the poll request failed, doubling the wait each time up to a minute or the interval, whichever is
+	 * longer. */
+	void backoff (Device device) {
+		if (device.task.isDone()) return;
+		long intervalMillis = device.intervalMillis;
+		device.backoffMillis = Math.max(intervalMillis, Math.min(maxIntervalMillis, Math.max(device.backoffMillis * 2, intervalMillis * 2)));
+		schedule(device, oauth.getClock().millis() + device.backoffMillis);
+	}
+
+	static class Device implements Comparable<Device> {
+		final Token token;
+		final String deviceCode;
+		final long expirationMillis;
+		final Task<Token> task;
+		volatile long intervalMillis, backoffMillis;
+		long deadline;
+
+		Device (Token token, String deviceCode, long intervalMillis, long expirationMillis, Task<Token> task) {
+			this.token = token;
+			this.deviceCode = deviceCode;
+			this.intervalMillis = intervalMillis;
+			this.expirationMillis = expirationMillis;
+			this.task = task;
+		}
+
+		public int compareTo (Device other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+}
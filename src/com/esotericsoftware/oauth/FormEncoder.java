@@ -0,0 +1,105 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+/** Encodes values for an application/x-www-form-urlencoded body exactly like {@link java.net.URLEncoder} with UTF-8, but writes
+ * the bytes directly without looking up the charset, building a String, or throwing a checked exception. ASCII values, which are
+ * most tokens and codes, are encoded without a UTF-8 encoder. */
+class FormEncoder {
+	static private final byte[] hex = "0123456789ABCDEF".getBytes(OAuth.ascii);
+	static private final boolean[] unreserved = new boolean[128];
+	static {
+		for (int c = 'a'; c <= 'z'; c++)
+			unreserved[c] = true;
+		for (int c = 'A'; c <= 'Z'; c++)
+			unreserved[c] = true;
+		for (int c = '0'; c <= '9'; c++)
+			unreserved[c] = true;
+		unreserved['.'] = true;
+		unreserved['-'] = true;
+		unreserved['*'] = true;
+		unreserved['_'] = true;
+	}
+
+	static byte[] encode (String value) {
+		byte[] bytes = new byte[length(value)];
+		encode(value, bytes, 0);
+		return bytes;
+	}
+
+	/** @return The number of bytes needed to encode the value. */
+	static int length (String value) {
+		int length = 0;
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			if (c < 128)
+				length += unreserved[c] || c == ' ' ? 1 : 3;
+			else if (c < 0x800)
+				length += 6;
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 12;
+				i++;
+			} else if (Character.isSurrogate(c))
+				length += 3; // Encoded as '?', like URLEncoder.
+			else
+				length += 9;
+		}
+		return length;
+	}
+
+	/** Writes the encoded value, which must fit in the bytes.
+	 * @return The offset after the encoded value. */
+	static int encode (String value, byte[] bytes, int offset) {
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			if (c < 128) {
+				if (unreserved[c])
+					bytes[offset++] = (byte)c;
+				else if (c == ' ')
+					bytes[offset++] = '+';
+				else
+					offset = percent(c, bytes, offset);
+			} else if (c < 0x800) {
+				offset = percent(0xc0 | (c >> 6), bytes, offset);
+				offset = percent(0x80 | (c & 0x3f), bytes, offset);
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				offset = percent(0xf0 | (codePoint >> 18), bytes, offset);
+				offset = percent(0x80 | ((codePoint >> 12) & 0x3f), bytes, offset);
+				offset = percent(0x80 | ((codePoint >> 6) & 0x3f), bytes, offset);
+				offset = percent(0x80 | (codePoint & 0x3f), bytes, offset);
+			} else if (Character.isSurrogate(c))
+				offset = percent('?', bytes, offset);
+			else {
+				offset = percent(0xe0 | (c >> 12), bytes, offset);
+				offset = percent(0x80 | ((c >> 6) & 0x3f), bytes, offset);
+				offset = percent(0x80 | (c & 0x3f), bytes, offset);
+			}
+		}
+		return offset;
+	}
+
+	static private int percent (int b, byte[] bytes, int offset) {
+		bytes[offset] = '%';
+		bytes[offset + 1] = hex[(b >> 4) & 0xf];
+		bytes[offset + 2] = hex[b & 0xf];
+		return offset + 3;
+	}
+}
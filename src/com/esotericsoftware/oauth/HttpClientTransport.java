@@ -0,0 +1,135 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import shaded.org.apache.http.Header;
+import shaded.org.apache.http.HttpEntity;
+import shaded.org.apache.http.StatusLine;
+import shaded.org.apache.http.client.methods.CloseableHttpResponse;
+import shaded.org.apache.http.client.methods.HttpPost;
+import shaded.org.apache.http.client.utils.DateUtils;
+import shaded.org.apache.http.entity.ByteArrayEntity;
+import shaded.org.apache.http.entity.ContentType;
+import shaded.org.apache.http.impl.client.CloseableHttpClient;
+import shaded.org.apache.http.impl.client.HttpClients;
+import shaded.org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import shaded.org.apache.http.util.EntityUtils;
+
+/** Makes requests using Apache HttpClient. */
+public class HttpClientTransport implements Transport {
+	static private final byte[] empty = new byte[0];
+	static private final int maxBufferSize = 64 * 1024;
+	static private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue () {
+			return new byte[4096];
+		}
+	};
+
+	private final CloseableHttpClient http;
+
+	/** @param connectionPoolSize The number of threads that can make HTTP requests concurrently. */
+	public HttpClientTransport (int connectionPoolSize) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(connectionPoolSize);
+		connectionManager.setDefaultMaxPerRoute(connectionPoolSize);
+		http = HttpClients.custom().setConnectionManager(connectionManager).build();
+	}
+
+	public HttpClientTransport (CloseableHttpClient http) {
+		if (http == null) throw new IllegalArgumentException("http cannot be null.");
+		this.http = http;
+	}
+
+	public Response post (String url, byte[] body) throws IOException {
+		HttpPost request = new HttpPost(url);
+		request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_FORM_URLENCODED));
+
+		HttpEntity entity = null;
+		CloseableHttpResponse response = null;
+		try {
+			response = http.execute(request);
+			entity = response.getEntity();
+			byte[] bytes = entity == null ? empty : read(entity);
+			StatusLine statusLine = response.getStatusLine();
+			return new Response(statusLine.getStatusCode(), statusLine.getReasonPhrase(), bytes,
+				date(response.getFirstHeader("Date")));
+		} finally {
+			if (entity != null) EntityUtils.consumeQuietly(entity);
+			if (response != null) {
+				try {
+					response.close();
+				} catch (Throwable ignored) {
+				}
+			}
+		}
+	}
+
+	/** Reads the body directly into an array of the Content-Length size. If the length is not known, the body is read into a
+	 * buffer reused by the calling thread and copied once to an array of the right size. */
+	static private byte[] read (HttpEntity entity) throws IOException {
+		InputStream input = entity.getContent();
+		if (input == null) return empty;
+		try {
+			long contentLength = entity.getContentLength();
+			if (contentLength > Integer.MAX_VALUE) throw new IOException("Response is too large: " + contentLength);
+			if (contentLength == 0) return empty;
+			if (contentLength > 0) {
+				byte[] bytes = new byte[(int)contentLength];
+				for (int offset = 0; offset < bytes.length;) {
+					int count = input.read(bytes, offset, bytes.length - offset);
+					if (count == -1) throw new EOFException("Response ended before the Content-Length: " + contentLength);
+					offset += count;
+				}
+				return bytes;
+			}
+
+			byte[] buffer = buffers.get();
+			int length = 0;
+			while (true) {
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					if (buffer.length <= maxBufferSize) buffers.set(buffer);
+				}
+				int count = input.read(buffer, length, buffer.length - length);
+				if (count == -1) break;
+				length += count;
+			}
+			return length == 0 ? empty : Arrays.copyOf(buffer, length);
+		} finally {
+			input.close();
+		}
+	}
+
+	private long date (Header header) {
+		if (header == null) return 0;
+		Date date = DateUtils.parseDate(header.getValue());
+		return date == null ? 0 : date.getTime();
+	}
+
+	public CloseableHttpClient getHttpClient () {
+		return http;
+	}
+}
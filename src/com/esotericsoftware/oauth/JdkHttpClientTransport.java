@@ -0,0 +1,214 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/** Makes requests using the JDK's <code>java.net.http.HttpClient</code>, which negotiates HTTP/2 so concurrent requests to the
+ * same host share one connection. The Apache HttpClient libraries are not needed. Requires Java 11 or later.
+ * <p>
+ * Asynchronous requests complete on the HttpClient's executor, so no thread waits for the response. */
+public class JdkHttpClientTransport implements AsyncTransport {
+	private final Object client, bodyHandler;
+	private final Method newRequestBuilder, header, timeout, postMethod, build, ofByteArray, send, sendAsync, whenComplete;
+	private final Method statusCode, body, headers, firstValue, orElse, ofMillis;
+	private final Class<?> biConsumerClass;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+	private volatile long requestTimeoutMillis;
+
+	/** Uses a 30 second connect timeout.
+	 * @throws UnsupportedOperationException if java.net.http is not available. */
+	public JdkHttpClientTransport () {
+		this(30 * 1000);
+	}
+
+	/** @param connectTimeoutMillis 0 to wait forever.
+	 * @throws UnsupportedOperationException if java.net.http is not available. */
+	public JdkHttpClientTransport (long connectTimeoutMillis) {
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			// Reflection is used so the library can be built for and run on older versions of Java.
+			Class<?> durationClass = Class.forName("java.time.Duration");
+			ofMillis = durationClass.getMethod("ofMillis", long.class);
+
+			Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+			Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+			Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+			Object builder = clientClass.getMethod("newBuilder").invoke(null);
+			clientBuilderClass.getMethod("version", versionClass).invoke(builder, versionClass.getField("HTTP_2").get(null));
+			if (connectTimeoutMillis > 0)
+				clientBuilderClass.getMethod("connectTimeout", durationClass).invoke(builder, ofMillis.invoke(null, connectTimeoutMillis));
+			client = clientBuilderClass.getMethod("build").invoke(builder);
+
+			Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+			Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+			Class<?> publisherClass = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+			Class<?> handlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+			Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+			Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+			newRequestBuilder = requestClass.getMethod("newBuilder", URI.class);
+			header = requestBuilderClass.getMethod("header", String.class, String.class);
+			timeout = requestBuilderClass.getMethod("timeout", durationClass);
+			postMethod = requestBuilderClass.getMethod("POST", publisherClass);
+			build = requestBuilderClass.getMethod("build");
+			ofByteArray = Class.forName("java.net.http.HttpRequest$BodyPublishers").getMethod("ofByteArray", byte[].class);
+			bodyHandler = Class.forName("java.net.http.HttpResponse$BodyHandlers").getMethod("ofByteArray").invoke(null);
+			send = clientClass.getMethod("send", requestClass, handlerClass);
+			sendAsync = clientClass.getMethod("sendAsync", requestClass, handlerClass);
+			biConsumerClass = Class.forName("java.util.function.BiConsumer");
+			whenComplete = Class.forName("java.util.concurrent.CompletableFuture").getMethod("whenComplete", biConsumerClass);
+			statusCode = responseClass.getMethod("statusCode");
+			body = responseClass.getMethod("body");
+			headers = responseClass.getMethod("headers");
+			firstValue = headersClass.getMethod("firstValue", String.class);
+			orElse = Class.forName("java.util.Optional").getMethod("orElse", Object.class);
+		} catch (Exception ex) {
+			throw new UnsupportedOperationException("java.net.http is not available, Java 11 or later is required.", ex);
+		}
+	}
+
+	public Response post (String url, byte[] body) throws IOException {
+		Object request = request(url, body);
+		try {
+			return response(send.invoke(client, request, bodyHandler));
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for response.", cause);
+			}
+			throw ioException(cause);
+		} catch (IllegalAccessException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	public void post (String url, byte[] body, final Callback<Response> callback) {
+		if (callback == null) throw new IllegalArgumentException("callback cannot be null.");
+		Object future;
+		try {
+			future = sendAsync.invoke(client, request(url, body), bodyHandler);
+		} catch (Throwable ex) {
+			callback.failed(ioException(ex instanceof InvocationTargetException ? ex.getCause() : ex));
+			return;
+		}
+		// A BiConsumer is notified when the CompletableFuture completes.
+		Object listener = Proxy.newProxyInstance(biConsumerClass.getClassLoader(), new Class<?>[] {biConsumerClass},
+			new InvocationHandler() {
+				public Object invoke (Object proxy, Method method, Object[] args) {
+					if (!method.getName().equals("accept")) {
+						if (method.getName().equals("equals")) return proxy == args[0];
+						if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+						return "JdkHttpClientTransport callback";
+					}
+					Response response = null;
+					Throwable error = (Throwable)args[1];
+					if (error == null) {
+						try {
+							response = response(args[0]);
+						} catch (Throwable ex) {
+							error = ex;
+						}
+					}
+					if (error != null)
+						callback.failed(ioException(error));
+					else
+						callback.completed(response);
+					return null;
+				}
+			});
+		try {
+			whenComplete.invoke(future, listener);
+		} catch (Exception ex) {
+			callback.failed(ioException(ex));
+		}
+	}
+
+	private Object request (String url, byte[] body) throws IOException {
+		try {
+			Object builder = newRequestBuilder.invoke(null, new URI(url));
+			header.invoke(builder, "Content-Type", "application/x-www-form-urlencoded");
+			header.invoke(builder, "Accept", "application/json");
+			long requestTimeoutMillis = this.requestTimeoutMillis;
+			if (requestTimeoutMillis > 0) timeout.invoke(builder, ofMillis.invoke(null, requestTimeoutMillis));
+			postMethod.invoke(builder, ofByteArray.invoke(null, (Object)body));
+			return build.invoke(builder);
+		} catch (URISyntaxException ex) {
+			throw new IOException("Invalid URL: " + url, ex);
+		} catch (InvocationTargetException ex) {
+			throw ioException(ex.getCause());
+		} catch (IllegalAccessException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private Response response (Object response) throws IOException {
+		int status;
+		byte[] bytes;
+		String date;
+		try {
+			status = (Integer)statusCode.invoke(response);
+			bytes = (byte[])body.invoke(response);
+			date = (String)orElse.invoke(firstValue.invoke(headers.invoke(response), "Date"), (Object)null);
+		} catch (InvocationTargetException ex) {
+			throw ioException(ex.getCause());
+		} catch (IllegalAccessException ex) {
+			throw new IOException(ex);
+		}
+		long dateMillis = 0;
+		if (date != null) {
+			synchronized (dateFormat) {
+				try {
+					dateMillis = dateFormat.parse(date).getTime();
+				} catch (ParseException ignored) {
+				}
+			}
+		}
+		// HTTP/2 has no reason phrase.
+		return new Response(status, null, bytes != null ? bytes : new byte[0], dateMillis);
+	}
+
+	/** Unwraps the CompletionException or other wrapper around an IOException. */
+	static private IOException ioException (Throwable ex) {
+		while (!(ex instanceof IOException) && ex.getCause() != null && ex.getCause() != ex)
+			ex = ex.getCause();
+		if (ex instanceof IOException) return (IOException)ex;
+		return new IOException(ex);
+	}
+
+	public long getRequestTimeoutMillis () {
+		return requestTimeoutMillis;
+	}
+
+	/** @param requestTimeoutMillis How long to wait for a response, or 0 to wait forever (the default). */
+	public void setRequestTimeoutMillis (long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+}
@@ -0,0 +1,245 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.oauth.OAuth.*;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Signs JWT assertions for the JWT bearer grant (RFC 7523). The header is encoded once, each thread keeps its own initialized
+ * {@link Signature}, and a signed assertion is reused until shortly before it expires, so signing is rarely done when tokens are
+ * requested.
+ * @see OAuth#setJwtAssertion(JwtAssertion) */
+public class JwtAssertion {
+	static private final byte[] base64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(ascii);
+
+	private final String algorithm;
+	private final PrivateKey key;
+	private final int coordinateSize; // For ECDSA, else 0.
+	private final byte[] header; // Base64url encoded, with the trailing period.
+	private final String claims; // The constant claims as JSON, without braces.
+	private final ConcurrentHashMap<String, Signed> assertions = new ConcurrentHashMap<>();
+	private volatile long lifetimeMillis = 60 * 60 * 1000, reuseMarginMillis = 5 * 60 * 1000;
+	private volatile boolean scopeClaim;
+
+	private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+		protected Signature initialValue () {
+			try {
+				Signature signature = Signature.getInstance(algorithm);
+				signature.initSign(key);
+				return signature;
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("Unable to create signature: " + algorithm, ex);
+			}
+		}
+	};
+
+	/** @param alg RS256, RS384, RS512, ES256, ES384, or ES512.
+	 * @param keyID May be null.
+	 * @param issuer The iss claim, usually the client ID or service account.
+	 * @param subject The sub claim, may be null.
+	 * @param audience The aud claim, usually the access token URL. */
+	public JwtAssertion (String alg, PrivateKey key, String keyID, String issuer, String subject, String audience) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		if (issuer == null) throw new IllegalArgumentException("issuer cannot be null.");
+		if (audience == null) throw new IllegalArgumentException("audience cannot be null.");
+		if (alg.equals("RS256"))
+			algorithm = "SHA256withRSA";
+		else if (alg.equals("RS384"))
+			algorithm = "SHA384withRSA";
+		else if (alg.equals("RS512"))
+			algorithm = "SHA512withRSA";
+		else if (alg.equals("ES256"))
+			algorithm = "SHA256withECDSA";
+		else if (alg.equals("ES384"))
+			algorithm = "SHA384withECDSA";
+		else if (alg.equals("ES512"))
+			algorithm = "SHA512withECDSA";
+		else
+			throw new IllegalArgumentException("Unsupported algorithm: " + alg);
+		coordinateSize = alg.equals("ES256") ? 32 : alg.equals("ES384") ? 48 : alg.equals("ES512") ? 66 : 0;
+		this.key = key;
+		signatures.get(); // Fail now if the key does not match the algorithm.
+
+		byte[] json = ("{\"alg\":\"" + alg + "\",\"typ\":\"JWT\"" + (keyID != null ? ",\"kid\":" + quote(keyID) : "") + "}")
+			.getBytes(utf8);
+		header = new byte[base64Length(json.length) + 1];
+		base64(json, header, 0);
+		header[header.length - 1] = '.';
+		claims = "\"iss\":" + quote(issuer) + (subject != null ? ",\"sub\":" + quote(subject) : "") + ",\"aud\":" + quote(audience);
+	}
+
+	/** Returns a signed assertion using {@link System#currentTimeMillis()}.
+	 * @param scopes May be null. */
+	public String get (String scopes) {
+		return get(scopes, System.currentTimeMillis());
+	}
+
+	/** Returns the cached assertion for the scopes, or signs a new one if the cached one expires within the reuse margin.
+	 * @param scopes May be null.
+	 * @param nowMillis The current time on the server, used for the iat and exp claims. */
+	public String get (String scopes, long nowMillis) {
+		if (scopes == null) scopes = "";
+		Signed signed = assertions.get(scopes);
+		if (signed != null && nowMillis < signed.expirationMillis - reuseMarginMillis && nowMillis >= signed.issuedMillis)
+			return signed.assertion;
+		signed = sign(scopes, nowMillis);
+		assertions.put(scopes, signed);
+		return signed.assertion;
+	}
+
+	private Signed sign (String scopes, long nowMillis) {
+		long issued = nowMillis / 1000, expiration = issued + lifetimeMillis / 1000;
+		byte[] json = ("{" + claims + ",\"iat\":" + issued + ",\"exp\":" + expiration
+			+ (scopeClaim && scopes.length() > 0 ? ",\"scope\":" + quote(scopes) : "") + "}").getBytes(utf8);
+
+		// header.claims
+		int claimsLength = base64Length(json.length);
+		byte[] input = new byte[header.length + claimsLength];
+		System.arraycopy(header, 0, input, 0, header.length);
+		base64(json, input, header.length);
+
+		byte[] signature;
+		try {
+			Signature signer = signatures.get();
+			signer.update(input);
+			signature = signer.sign();
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to sign assertion.", ex);
+		}
+		if (coordinateSize > 0) signature = concatenate(signature, coordinateSize);
+
+		// header.claims.signature
+		byte[] assertion = new byte[input.length + 1 + base64Length(signature.length)];
+		System.arraycopy(input, 0, assertion, 0, input.length);
+		assertion[input.length] = '.';
+		base64(signature, assertion, input.length + 1);
+		return new Signed(new String(assertion, ascii), issued * 1000, expiration * 1000);
+	}
+
+	/** Discards the cached assertions, so new ones are signed when next needed. */
+	public void clear () {
+		assertions.clear();
+	}
+
+	public long getLifetimeMillis () {
+		return lifetimeMillis;
+	}
+
+	/** Sets the time from the iat to the exp claim. Default is 1 hour, which is the maximum for some servers. */
+	public void setLifetimeMillis (long lifetimeMillis) {
+		this.lifetimeMillis = lifetimeMillis;
+	}
+
+	public long getReuseMarginMillis () {
+		return reuseMarginMillis;
+	}
+
+	/** Sets how long before the exp claim a new assertion is signed instead of reusing the cached one. Default is 5 minutes. */
+	public void setReuseMarginMillis (long reuseMarginMillis) {
+		this.reuseMarginMillis = reuseMarginMillis;
+	}
+
+	public boolean getScopeClaim () {
+		return scopeClaim;
+	}
+
+	/** When true, the scopes are also included as a scope claim, which some servers require instead of the scope parameter.
+	 * Default is false. */
+	public void setScopeClaim (boolean scopeClaim) {
+		this.scopeClaim = scopeClaim;
+		assertions.clear();
+	}
+
+	static private String quote (String value) {
+		StringBuilder buffer = new StringBuilder(value.length() + 2);
+		buffer.append('"');
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				buffer.append('\\').append(c);
+			else if (c < 0x20)
+				buffer.append(String.format("\\u%04x", (int)c));
+			else
+				buffer.append(c);
+		}
+		buffer.append('"');
+		return buffer.toString();
+	}
+
+	static private int base64Length (int length) {
+		return (length * 4 + 2) / 3;
+	}
+
+	/** Writes base64url without padding. */
+	static private void base64 (byte[] bytes, byte[] output, int offset) {
+		int i = 0, n = bytes.length - bytes.length % 3;
+		for (; i < n; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+			output[offset++] = base64[bits >>> 18];
+			output[offset++] = base64[bits >>> 12 & 0x3f];
+			output[offset++] = base64[bits >>> 6 & 0x3f];
+			output[offset++] = base64[bits & 0x3f];
+		}
+		int remaining = bytes.length - n;
+		if (remaining == 1) {
+			int bits = (bytes[i] & 0xff) << 16;
+			output[offset++] = base64[bits >>> 18];
+			output[offset] = base64[bits >>> 12 & 0x3f];
+		} else if (remaining == 2) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+			output[offset++] = base64[bits >>> 18];
+			output[offset++] = base64[bits >>> 12 & 0x3f];
+			output[offset] = base64[bits >>> 6 & 0x3f];
+		}
+	}
+
+	/** Converts a DER encoded ECDSA signature to the concatenated R and S that JWS uses. */
+	static private byte[] concatenate (byte[] der, int size) {
+		int offset = 2;
+		if ((der[1] & 0x80) != 0) offset += der[1] & 0x7f; // Long form sequence length.
+		byte[] output = new byte[size * 2];
+		for (int i = 0; i < 2; i++) {
+			if (der[offset] != 0x02) throw new IllegalStateException("Invalid ECDSA signature.");
+			int length = der[offset + 1] & 0xff, start = offset + 2;
+			offset = start + length;
+			while (length > size) { // Leading zero bytes.
+				start++;
+				length--;
+			}
+			System.arraycopy(der, start, output, size * (i + 1) - length, length);
+		}
+		return output;
+	}
+
+	static private class Signed {
+		final String assertion;
+		final long issuedMillis, expirationMillis;
+
+		Signed (String assertion, long issuedMillis, long expirationMillis) {
+			this.assertion = assertion;
+			this.issuedMillis = issuedMillis;
+			this.expirationMillis = expirationMillis;
+		}
+	}
+}
@@ -0,0 +1,806 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+/** Makes requests using non-blocking sockets and a single selector thread, so thousands of requests can be in progress without a
+ * thread for each. Connections are kept alive and reused for later requests to the same host. HTTPS uses an {@link SSLEngine}.
+ * The host name is resolved for each new connection on a separate thread, so DNS changes are followed and a slow lookup does not
+ * block the selector thread.
+ * <p>
+ * Callbacks are notified on the selector thread, so they must not block. The blocking {@link #post(String, byte[])} waits for
+ * the response on the calling thread. */
+public class NioTransport implements AsyncTransport, Closeable {
+	static private final byte[] empty = new byte[0];
+	static private final ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+
+	private final Selector selector;
+	private final SSLContext sslContext;
+	private final ConcurrentLinkedQueue<Exchange> queue = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Connection> resolved = new ConcurrentLinkedQueue<>();
+	private final ThreadPoolExecutor resolver;
+	private final HashMap<String, Host> hosts = new HashMap<>();
+	private final ArrayList<Connection> connections = new ArrayList<>();
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+	private volatile int maxConnectionsPerHost = 64, maxResponseSize = 1024 * 1024;
+	private volatile long requestTimeoutMillis = 60 * 1000, idleTimeoutMillis = 30 * 1000;
+	private volatile boolean closed;
+	private long nextTimeoutCheck;
+
+	/** Uses the default SSL context for HTTPS. */
+	public NioTransport () throws IOException {
+		this(defaultSSLContext());
+	}
+
+	public NioTransport (SSLContext sslContext) throws IOException {
+		if (sslContext == null) throw new IllegalArgumentException("sslContext cannot be null.");
+		this.sslContext = sslContext;
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		selector = Selector.open();
+
+		resolver = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, "NioTransport resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		resolver.allowCoreThreadTimeOut(true);
+
+		Thread thread = new Thread(new Runnable() {
+			public void run () {
+				NioTransport.this.run();
+			}
+		}, "NioTransport");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static private SSLContext defaultSSLContext () throws IOException {
+		try {
+			return SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("Unable to create SSL context.", ex);
+		}
+	}
+
+	public void post (String url, byte[] body, Callback<Response> callback) {
+		if (callback == null) throw new IllegalArgumentException("callback cannot be null.");
+		if (closed) {
+			callback.failed(new IOException("Transport is closed."));
+			return;
+		}
+		Exchange exchange;
+		try {
+			exchange = new Exchange(url, body, callback, System.currentTimeMillis() + requestTimeoutMillis);
+		} catch (IOException ex) {
+			callback.failed(ex);
+			return;
+		}
+		queue.add(exchange);
+		selector.wakeup();
+	}
+
+	public Response post (String url, byte[] body) throws IOException {
+		Task<Response> task = new Task<>();
+		post(url, body, task);
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for response.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** Fails all requests in progress and closes the connections. */
+	public void close () {
+		closed = true;
+		selector.wakeup();
+	}
+
+	void run () {
+		while (!closed) {
+			try {
+				selector.select(250);
+			} catch (IOException ex) {
+				if (ERROR) error("Error waiting for sockets.", ex);
+				break;
+			}
+
+			for (Exchange exchange; (exchange = queue.poll()) != null;)
+				dispatch(exchange);
+
+			for (Connection connection; (connection = resolved.poll()) != null;)
+				connection.connect();
+
+			for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				Connection connection = (Connection)key.attachment();
+				try {
+					if (!key.isValid()) continue;
+					if (key.isConnectable()) connection.finishConnect();
+					connection.process();
+				} catch (Throwable ex) {
+					connection.failed(ex);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (now >= nextTimeoutCheck) {
+				nextTimeoutCheck = now + 100;
+				checkTimeouts(now);
+			}
+		}
+
+		IOException ex = new IOException("Transport is closed.");
+		for (Connection connection : new ArrayList<>(connections))
+			connection.failed(ex);
+		for (Host host : hosts.values())
+			for (Exchange exchange; (exchange = host.pending.poll()) != null;)
+				exchange.failed(ex);
+		for (Exchange exchange; (exchange = queue.poll()) != null;)
+			exchange.failed(ex);
+		resolver.shutdown();
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private void dispatch (Exchange exchange) {
+		Host host = hosts.get(exchange.hostKey);
+		if (host == null) {
+			host = new Host(exchange);
+			hosts.put(host.key, host);
+		}
+		Connection connection = host.idle.pollLast();
+		if (connection != null)
+			connection.start(exchange);
+		else if (host.open < maxConnectionsPerHost)
+			open(host, exchange);
+		else
+			host.pending.add(exchange);
+	}
+
+	/** Resolves the host name on a resolver thread, then connects and starts the exchange on the selector thread. The connection
+	 * counts toward the host's limit while resolving and the request timeout applies. */
+	private void open (Host host, Exchange exchange) {
+		final Connection connection = new Connection(host);
+		connection.exchange = exchange;
+		try {
+			resolver.execute(new Runnable() {
+				public void run () {
+					connection.resolve();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			connection.failed(new IOException("Transport is closed."));
+		}
+	}
+
+	private void checkTimeouts (long now) {
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Connection connection = connections.get(i);
+			if (connection.exchange != null) {
+				if (now > connection.exchange.deadline) connection.failed(new SocketTimeoutException("Request timed out."));
+			} else if (now - connection.idleSince > idleTimeoutMillis) //
+				connection.close();
+		}
+		for (Host host : hosts.values()) {
+			for (Iterator<Exchange> iter = host.pending.iterator(); iter.hasNext();) {
+				Exchange exchange = iter.next();
+				if (now > exchange.deadline) {
+					iter.remove();
+					exchange.failed(new SocketTimeoutException("Request timed out waiting for a connection."));
+				}
+			}
+		}
+	}
+
+	long date (String value) {
+		try {
+			return dateFormat.parse(value).getTime();
+		} catch (ParseException ex) {
+			return 0;
+		}
+	}
+
+	public int getMaxConnectionsPerHost () {
+		return maxConnectionsPerHost;
+	}
+
+	/** Sets the maximum number of connections open to each host. Requests wait for a connection when the limit is reached.
+	 * Default is 64. */
+	public void setMaxConnectionsPerHost (int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public long getRequestTimeoutMillis () {
+		return requestTimeoutMillis;
+	}
+
+	/** Sets how long a request can take, including waiting for a connection, before it fails. Default is 60 seconds. */
+	public void setRequestTimeoutMillis (long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	public long getIdleTimeoutMillis () {
+		return idleTimeoutMillis;
+	}
+
+	/** Sets how long an unused connection is kept open for reuse. Default is 30 seconds. */
+	public void setIdleTimeoutMillis (long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public int getMaxResponseSize () {
+		return maxResponseSize;
+	}
+
+	/** Sets the maximum number of bytes in a response, including the headers. Default is 1 MB. */
+	public void setMaxResponseSize (int maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	/** The connections to a host and the requests waiting for a connection. Removed when it has no connections. Used only by the
+	 * selector thread. */
+	static private class Host {
+		final String key, name;
+		final int port;
+		final boolean https;
+		final ArrayDeque<Connection> idle = new ArrayDeque<>();
+		final ArrayDeque<Exchange> pending = new ArrayDeque<>();
+		int open;
+
+		Host (Exchange exchange) {
+			key = exchange.hostKey;
+			name = exchange.hostName;
+			port = exchange.port;
+			https = exchange.https;
+		}
+	}
+
+	/** A request and the callback for its response. */
+	static private class Exchange {
+		final String hostKey, hostName;
+		final int port;
+		final boolean https;
+		final byte[] request;
+		final Callback<Response> callback;
+		final long deadline;
+
+		Exchange (String url, byte[] body, Callback<Response> callback, long deadline) throws IOException {
+			URI uri;
+			try {
+				uri = new URI(url);
+			} catch (URISyntaxException ex) {
+				throw new IOException("Invalid URL: " + url, ex);
+			}
+			String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.US);
+			if (scheme.equals("https"))
+				https = true;
+			else if (scheme.equals("http"))
+				https = false;
+			else
+				throw new IOException("Unsupported URL scheme: " + url);
+			String host = uri.getHost();
+			if (host == null) throw new IOException("Invalid URL: " + url);
+			int port = uri.getPort();
+			boolean defaultPort = port == -1;
+			if (defaultPort) port = https ? 443 : 80;
+			this.port = port;
+
+			hostName = host.startsWith("[") ? host.substring(1, host.length() - 1) : host;
+			hostKey = scheme + "://" + host + ":" + port;
+
+			String path = uri.getRawPath();
+			if (path == null || path.isEmpty()) path = "/";
+			if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+			byte[] header = ("POST " + path + " HTTP/1.1\r\n" //
+				+ "Host: " + (defaultPort ? host : host + ":" + port) + "\r\n" //
+				+ "Content-Type: application/x-www-form-urlencoded\r\n" //
+				+ "Content-Length: " + body.length + "\r\n" //
+				+ "Accept: application/json\r\n" //
+				+ "\r\n").getBytes(OAuth.ascii);
+			request = new byte[header.length + body.length];
+			System.arraycopy(header, 0, request, 0, header.length);
+			System.arraycopy(body, 0, request, header.length, body.length);
+
+			this.callback = callback;
+			this.deadline = deadline;
+		}
+
+		void completed (Response response) {
+			try {
+				callback.completed(response);
+			} catch (Throwable ex) {
+				if (ERROR) error("Error notifying callback.", ex);
+			}
+		}
+
+		void failed (Throwable ex) {
+			try {
+				callback.failed(ex instanceof IOException ? ex : new IOException(ex));
+			} catch (Throwable ex2) {
+				if (ERROR) error("Error notifying callback.", ex2);
+			}
+		}
+	}
+
+	/** A connection to a host, which makes one request at a time. Used only by the selector thread. */
+	private class Connection {
+		final Host host;
+		SocketChannel channel;
+		SelectionKey key;
+		SSLEngine engine;
+		ByteBuffer netIn, netOut; // For HTTPS. netIn is ready to be filled, netOut is ready to be written.
+		ByteBuffer appIn; // The response bytes, ready to be filled.
+		ByteBuffer request;
+		InetSocketAddress address; // Set by the resolver thread.
+		Exchange exchange;
+		boolean connected, requestSent, keepAlive, removed;
+		long idleSince;
+
+		// Parser state.
+		int headerEnd, status, contentLength;
+		String reason;
+		boolean chunked;
+		long dateMillis;
+
+		Connection (Host host) {
+			this.host = host;
+			host.open++;
+			connections.add(this);
+		}
+
+		/** Called on a resolver thread. */
+		void resolve () {
+			address = new InetSocketAddress(host.name, host.port);
+			resolved.add(this);
+			selector.wakeup();
+		}
+
+		/** Opens the socket to the resolved address and starts the exchange, unless it failed while resolving. */
+		void connect () {
+			if (removed) return;
+			Exchange exchange = this.exchange;
+			try {
+				if (address.isUnresolved()) throw new UnknownHostException(host.name);
+				open();
+			} catch (Throwable ex) {
+				failed(ex);
+				return;
+			}
+			start(exchange);
+		}
+
+		private void open () throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			connected = channel.connect(address);
+			key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+
+			int appBufferSize = 4096;
+			if (host.https) {
+				engine = sslContext.createSSLEngine(host.name, host.port);
+				engine.setUseClientMode(true);
+				SSLParameters parameters = engine.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				engine.setSSLParameters(parameters);
+				int packetBufferSize = engine.getSession().getPacketBufferSize();
+				netIn = ByteBuffer.allocate(packetBufferSize);
+				netOut = ByteBuffer.allocate(packetBufferSize);
+				netOut.flip();
+				appBufferSize = engine.getSession().getApplicationBufferSize();
+				engine.beginHandshake();
+			}
+			appIn = ByteBuffer.allocate(appBufferSize);
+		}
+
+		void finishConnect () throws IOException {
+			if (channel.finishConnect()) connected = true;
+		}
+
+		void start (Exchange exchange) {
+			this.exchange = exchange;
+			request = ByteBuffer.wrap(exchange.request);
+			requestSent = false;
+			appIn.clear();
+			headerEnd = -1;
+			try {
+				process();
+			} catch (Throwable ex) {
+				failed(ex);
+			}
+		}
+
+		void process () throws IOException {
+			if (!connected) {
+				key.interestOps(SelectionKey.OP_CONNECT);
+				return;
+			}
+			if (exchange == null) {
+				idleRead();
+				return;
+			}
+			if (engine != null && !handshake()) return;
+			if (!write()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			requestSent = true;
+			while (true) {
+				int count = read();
+				Response response = parse(count == -1);
+				if (response != null) {
+					completed(response);
+					return;
+				}
+				if (count == -1) throw new EOFException("Connection closed before the response was complete.");
+				if (count == 0) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+		}
+
+		/** An idle connection is readable when the server closed it. */
+		private void idleRead () throws IOException {
+			appIn.clear();
+			int count = read();
+			if (count != 0 || appIn.position() > 0)
+				close();
+			else
+				key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/** @return false if the handshake is waiting for the socket. */
+		private boolean handshake () throws IOException {
+			while (true) {
+				HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+				switch (handshakeStatus) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					return true;
+				case NEED_TASK:
+					for (Runnable task; (task = engine.getDelegatedTask()) != null;)
+						task.run();
+					break;
+				case NEED_WRAP:
+					if (!flush()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+						return false;
+					}
+					netOut.compact();
+					SSLEngineResult result = engine.wrap(emptyBuffer, netOut);
+					netOut.flip();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("SSL engine closed.");
+					break;
+				default: // NEED_UNWRAP
+					if (!flush()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+						return false;
+					}
+					netIn.flip();
+					result = engine.unwrap(netIn, appIn);
+					netIn.compact();
+					switch (result.getStatus()) {
+					case BUFFER_UNDERFLOW:
+						int count = channel.read(netIn);
+						if (count == -1) throw new EOFException("Connection closed during SSL handshake.");
+						if (count == 0) {
+							key.interestOps(SelectionKey.OP_READ);
+							return false;
+						}
+						break;
+					case BUFFER_OVERFLOW:
+						growAppIn();
+						break;
+					case CLOSED:
+						throw new EOFException("SSL engine closed.");
+					default:
+					}
+				}
+			}
+		}
+
+		/** @return false if the request could not be written fully. */
+		private boolean write () throws IOException {
+			while (true) {
+				if (engine == null) {
+					channel.write(request);
+					return !request.hasRemaining();
+				}
+				if (!flush()) return false;
+				if (!request.hasRemaining()) return true;
+				netOut.compact();
+				SSLEngineResult result = engine.wrap(request, netOut);
+				netOut.flip();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("SSL engine closed.");
+			}
+		}
+
+		/** @return false if the encrypted bytes could not be written fully. */
+		private boolean flush () throws IOException {
+			while (netOut.hasRemaining())
+				if (channel.write(netOut) == 0) return false;
+			return true;
+		}
+
+		/** Reads response bytes into appIn.
+		 * @return The number of bytes read, 0 if none are available, or -1 if the connection was closed. */
+		private int read () throws IOException {
+			if (appIn.remaining() < 1024) growAppIn();
+			if (engine == null) return channel.read(appIn);
+			while (true) {
+				netIn.flip();
+				int start = appIn.position();
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+				switch (result.getStatus()) {
+				case OK:
+					if (appIn.position() > start) return appIn.position() - start;
+					HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+					if (handshakeStatus != HandshakeStatus.NOT_HANDSHAKING && handshakeStatus != HandshakeStatus.FINISHED
+						&& !handshake()) return 0;
+					break;
+				case BUFFER_UNDERFLOW:
+					int count = channel.read(netIn);
+					if (count <= 0) return count;
+					break;
+				case BUFFER_OVERFLOW:
+					growAppIn();
+					break;
+				case CLOSED:
+					return -1;
+				}
+			}
+		}
+
+		private void growAppIn () throws IOException {
+			int size = appIn.capacity();
+			if (size >= maxResponseSize) throw new IOException("Response is larger than the maximum: " + maxResponseSize);
+			int needed = engine != null ? engine.getSession().getApplicationBufferSize() : 1024;
+			ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(size * 2, appIn.position() + needed));
+			appIn.flip();
+			newBuffer.put(appIn);
+			appIn = newBuffer;
+		}
+
+		/** @return The response, or null if more bytes are needed. */
+		private Response parse (boolean closed) throws IOException {
+			byte[] bytes = appIn.array();
+			int length = appIn.position();
+			while (headerEnd == -1) {
+				int end = indexOf(bytes, 0, length);
+				if (end == -1) return null;
+				parseHeader(bytes, end);
+				if (status >= 100 && status < 200) { // Skip informational responses.
+					System.arraycopy(bytes, end + 4, bytes, 0, length - end - 4);
+					length -= end + 4;
+					appIn.position(length);
+					continue;
+				}
+				headerEnd = end;
+			}
+
+			int bodyStart = headerEnd + 4;
+			byte[] body;
+			if (status == 204 || status == 304)
+				body = empty;
+			else if (chunked) {
+				body = dechunk(bytes, bodyStart, length);
+				if (body == null) return null;
+			} else if (contentLength >= 0) {
+				if (length - bodyStart < contentLength) return null;
+				if (length - bodyStart > contentLength) keepAlive = false;
+				body = new byte[contentLength];
+				System.arraycopy(bytes, bodyStart, body, 0, contentLength);
+			} else {
+				// The body ends when the connection is closed.
+				if (!closed) return null;
+				keepAlive = false;
+				body = new byte[length - bodyStart];
+				System.arraycopy(bytes, bodyStart, body, 0, body.length);
+			}
+			return new Response(status, reason, body, dateMillis);
+		}
+
+		private void parseHeader (byte[] bytes, int end) throws IOException {
+			String[] lines = new String(bytes, 0, end, OAuth.ascii).split("\r\n");
+			String[] statusLine = lines[0].split(" ", 3);
+			if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+				throw new IOException("Invalid response status line: " + lines[0]);
+			try {
+				status = Integer.parseInt(statusLine[1]);
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid response status line: " + lines[0]);
+			}
+			reason = statusLine.length == 3 ? statusLine[2] : null;
+			keepAlive = !statusLine[0].equals("HTTP/1.0");
+			contentLength = -1;
+			chunked = false;
+			dateMillis = 0;
+			for (int i = 1, n = lines.length; i < n; i++) {
+				String line = lines[i];
+				int colon = line.indexOf(':');
+				if (colon == -1) continue;
+				String name = line.substring(0, colon).trim(), value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Integer.parseInt(value);
+					} catch (NumberFormatException ex) {
+						throw new IOException("Invalid Content-Length: " + value);
+					}
+				} else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.toLowerCase(Locale.US).contains("chunked");
+				else if (name.equalsIgnoreCase("Connection")) {
+					value = value.toLowerCase(Locale.US);
+					if (value.contains("close"))
+						keepAlive = false;
+					else if (value.contains("keep-alive")) //
+						keepAlive = true;
+				} else if (name.equalsIgnoreCase("Date")) //
+					dateMillis = date(value);
+			}
+		}
+
+		/** @return The body, or null if more bytes are needed. */
+		private byte[] dechunk (byte[] bytes, int start, int length) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(length - start);
+			int p = start;
+			while (true) {
+				int lineEnd = indexOfLine(bytes, p, length);
+				if (lineEnd == -1) return null;
+				String sizeLine = new String(bytes, p, lineEnd - p, OAuth.ascii);
+				int semicolon = sizeLine.indexOf(';');
+				if (semicolon != -1) sizeLine = sizeLine.substring(0, semicolon);
+				int size;
+				try {
+					size = Integer.parseInt(sizeLine.trim(), 16);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid chunk size: " + sizeLine);
+				}
+				p = lineEnd + 2;
+				if (size == 0) {
+					// Skip the trailers, which end with an empty line.
+					while (true) {
+						lineEnd = indexOfLine(bytes, p, length);
+						if (lineEnd == -1) return null;
+						if (lineEnd == p) break;
+						p = lineEnd + 2;
+					}
+					if (lineEnd + 2 < length) keepAlive = false;
+					return body.toByteArray();
+				}
+				if (size < 0 || length - p < size + 2) return null;
+				body.write(bytes, p, size);
+				p += size + 2;
+			}
+		}
+
+		void completed (Response response) {
+			Exchange exchange = this.exchange;
+			this.exchange = null;
+			if (keepAlive) {
+				idleSince = System.currentTimeMillis();
+				Exchange next = host.pending.poll();
+				if (next != null)
+					start(next);
+				else {
+					host.idle.add(this);
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else
+				close();
+			exchange.completed(response);
+		}
+
+		void failed (Throwable ex) {
+			Exchange exchange = this.exchange;
+			this.exchange = null;
+			boolean retry = exchange != null && !requestSent && idleSince != 0; // A reused connection was closed by the server.
+			close();
+			if (exchange == null) return;
+			if (retry) {
+				if (DEBUG) debug("Retrying request on a new connection: " + ex.getMessage());
+				dispatch(exchange);
+			} else
+				exchange.failed(ex);
+		}
+
+		void close () {
+			if (!connections.remove(this)) return;
+			removed = true;
+			host.open--;
+			host.idle.remove(this);
+			if (key != null) key.cancel();
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+				}
+			}
+			if (!closed && host.open < maxConnectionsPerHost) {
+				Exchange next = host.pending.poll();
+				if (next != null) NioTransport.this.open(host, next);
+			}
+			if (host.open == 0 && host.pending.isEmpty()) hosts.remove(host.key);
+		}
+	}
+
+	/** @return The index of the first CRLFCRLF, or -1. */
+	static int indexOf (byte[] bytes, int start, int end) {
+		for (int i = start, n = end - 3; i < n; i++)
+			if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') return i;
+		return -1;
+	}
+
+	/** @return The index of the first CRLF, or -1. */
+	static int indexOfLine (byte[] bytes, int start, int end) {
+		for (int i = start, n = end - 1; i < n; i++)
+			if (bytes[i] == '\r' && bytes[i + 1] == '\n') return i;
+		return -1;
+	}
+}
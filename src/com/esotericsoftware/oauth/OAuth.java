@@ -26,71 +26,111 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
-import java.net.URLEncoder;
-import java.util.Scanner;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.esotericsoftware.jsonbeans.JsonReader;
-import com.esotericsoftware.jsonbeans.JsonValue;
+import com.esotericsoftware.oauth.BatchResult.Outcome;
+import com.esotericsoftware.oauth.OAuth.Token.Snapshot;
+import com.esotericsoftware.oauth.Transport.Response;
 
-import shaded.org.apache.http.HttpEntity;
-import shaded.org.apache.http.client.methods.CloseableHttpResponse;
-import shaded.org.apache.http.client.methods.HttpPost;
-import shaded.org.apache.http.entity.StringEntity;
 import shaded.org.apache.http.impl.client.CloseableHttpClient;
-import shaded.org.apache.http.impl.client.HttpClients;
-import shaded.org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import shaded.org.apache.http.util.EntityUtils;
 
 /** @author Nathan Sweet */
 public class OAuth {
+	static final Charset utf8 = Charset.forName("UTF-8"), ascii = Charset.forName("US-ASCII");
+	static private final Pattern codePattern = Pattern.compile("code=([^&]+)&?");
+	static private final SecureRandom random = new SecureRandom();
+
 	private final String category;
-	private final CloseableHttpClient http;
+	private final Transport transport;
 	private final String clientID;
 	private final String redirectURL, authorizeURL, accessTokenURL;
 	private final String scopes;
-	private String clientSecret;
+	private volatile FormTemplates templates;
+	private final ConcurrentHashMap<Token, Task<Boolean>> refreshes = new ConcurrentHashMap<>();
+	private int connectionPoolSize = 4, executorThreads = 4;
+	private Executor executor;
+	private ExecutorService createdExecutor;
+	private ThreadFactory virtualThreads;
+	private RefreshScheduler scheduler;
+	private volatile long refreshLeadMillis = 5 * 60 * 1000, refreshJitterMillis;
+	private volatile int maxRefreshesPerSecond;
+	private volatile Clock clock = Clock.system;
+	private volatile long expirationMarginMillis = 10 * 1000, clockSkewMillis, rotationGraceMillis;
+	private final ConcurrentHashMap<String, Rotation> rotations = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Rotation> rotationQueue = new ConcurrentLinkedQueue<>();
+	private volatile RedirectListener redirectListener;
+	private volatile String deviceAuthorizationURL;
+	private volatile JwtAssertion jwtAssertion;
+	private final TokenCache<Snapshot> exchanges = new TokenCache<>();
+	private final ConcurrentHashMap<TokenCache.Key, Task<Snapshot>> exchangeRequests = new ConcurrentHashMap<>();
+	private DevicePoller devicePoller;
+	private final ConcurrentHashMap<String, ClientToken> clientTokens = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Task<ClientToken>> clientRequests = new ConcurrentHashMap<>();
 
-	/** @param connectionPoolSize The number of threads that can make HTTP requests concurrently. */
+	/** Uses an {@link HttpClientTransport}.
+	 * @param connectionPoolSize The number of threads that can make HTTP requests concurrently. */
 	public OAuth (String category, String clientID, String redirectURL, String authorizeURL, String accessTokenURL, String scopes,
 		int connectionPoolSize) {
-		this.category = category;
-		this.clientID = clientID;
-		this.redirectURL = redirectURL;
-		this.authorizeURL = authorizeURL;
-		this.accessTokenURL = accessTokenURL;
-		this.scopes = scopes;
-
-		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
-		connectionManager.setMaxTotal(connectionPoolSize);
-		connectionManager.setDefaultMaxPerRoute(connectionPoolSize);
-		http = HttpClients.custom().setConnectionManager(connectionManager).build();
+		this(category, clientID, redirectURL, authorizeURL, accessTokenURL, scopes, new HttpClientTransport(connectionPoolSize));
+		this.connectionPoolSize = connectionPoolSize;
 	}
 
+	/** Uses an {@link HttpClientTransport}. */
 	public OAuth (String category, String clientID, String redirectURL, String authorizeURL, String accessTokenURL, String scopes,
 		CloseableHttpClient http) {
+		this(category, clientID, redirectURL, authorizeURL, accessTokenURL, scopes, new HttpClientTransport(http));
+	}
+
+	public OAuth (String category, String clientID, String redirectURL, String authorizeURL, String accessTokenURL, String scopes,
+		Transport transport) {
+		if (transport == null) throw new IllegalArgumentException("transport cannot be null.");
 		this.category = category;
 		this.clientID = clientID;
 		this.redirectURL = redirectURL;
 		this.authorizeURL = authorizeURL;
 		this.accessTokenURL = accessTokenURL;
 		this.scopes = scopes;
-		this.http = http;
+		this.transport = transport;
+		templates = new FormTemplates(clientID, redirectURL, scopes, null);
 	}
 
 	/** Initializes the specified token, if necessary.
 	 * @return true when a new access token was needed. */
 	public boolean authorize (Token token) throws IOException {
-		if (token.accessToken != null) return false;
-		obtainAccessToken(token, authorizeURL //
-			+ "?client_id=" + URLEncoder.encode(clientID, "UTF-8") //
-			+ "&response_type=code" //
-			+ "&redirect_uri=" + URLEncoder.encode(redirectURL, "UTF-8") //
-			+ "&scope=" + URLEncoder.encode(scopes, "UTF-8"));
+		if (token.getSnapshot().accessToken != null) return false;
+		obtainAccessToken(token, authorizationURL());
+		token.publish(); // In case obtainAccessToken was overridden and set the fields directly.
 		return true;
 	}
 
+	private String authorizationURL () {
+		return authorizeURL //
+			+ "?client_id=" + encode(clientID) //
+			+ "&response_type=code" //
+			+ "&redirect_uri=" + encode(redirectURL) //
+			+ "&scope=" + encode(scopes);
+	}
+
 	/** Called when a new access token is needed. The default implementation throws UnsupportedOperationException unless a
 	 * {@link #setClientSecret(String) client secret} has been set.
 	 * <p>
@@ -111,9 +151,42 @@ public class OAuth {
 	 * <p>
 	 * If a client secret has been set, the default implementation opens the specified URL in a browser and prompts the user to
 	 * paste the authorization code at the command line. Next the authorization code and client secret are used to obtain an access
-	 * token. The specified token is updated and ready to use when this method returns. */
+	 * token. The specified token is updated and ready to use when this method returns.
+	 * <p>
+	 * If a {@link #setRedirectListener(RedirectListener) redirect listener} has been set, the default implementation waits for
+	 * the redirect instead of prompting the user.
+	 * <p>
+	 * If a {@link #setDeviceAuthorizationURL(String) device authorization URL} has been set, the default implementation instead
+	 * shows the user code and verification URL and waits for the user to approve the device. A client secret is not needed. */
 	protected void obtainAccessToken (Token token, String url) throws IOException {
-		if (clientSecret == null) throw new UnsupportedOperationException();
+		if (deviceAuthorizationURL != null) {
+			DeviceAuthorization authorization = startDeviceAuthorization(token, null);
+			if (INFO) {
+				info(category, "Visit this URL and enter the code " + authorization.userCode + ":\n" + authorization.verificationURL);
+			}
+			await(authorization.future);
+			if (INFO) info(category, "Access token stored.");
+			return;
+		}
+
+		if (templates.clientSecret == null) throw new UnsupportedOperationException();
+
+		if (redirectListener != null) {
+			Authorization authorization = startAuthorization(token, url, null);
+			if (INFO) info(category, "Visit this URL and allow access:\n" + authorization.url);
+			try {
+				Desktop.getDesktop().browse(new URI(authorization.url));
+			} catch (Exception ignored) {
+			}
+			try {
+				await(authorization.future);
+			} catch (IOException ex) {
+				authorization.cancel();
+				throw ex;
+			}
+			if (INFO) info(category, "Access token stored.");
+			return;
+		}
 
 		if (INFO) info(category, "Visit this URL, allow access, and paste the new URL:\n" + url);
 		try {
@@ -122,97 +195,929 @@ public class OAuth {
 		}
 		String authorizationCode = new BufferedReader(new InputStreamReader(System.in)).readLine();
 		if (authorizationCode.contains("code=")) {
-			Pattern pattern = Pattern.compile("code=([^&]+)&?");
-			Matcher matcher = pattern.matcher(authorizationCode);
+			Matcher matcher = codePattern.matcher(authorizationCode);
 			if (matcher.find()) authorizationCode = matcher.group(1);
 		}
 
-		if (TRACE) trace(category, "Requesting access token.");
-		JsonValue json = post(accessTokenURL, //
-			"code=" + URLEncoder.encode(authorizationCode, "UTF-8") //
-				+ "&redirect_uri=" + URLEncoder.encode(redirectURL, "UTF-8") //
-				+ "&client_id=" + URLEncoder.encode(clientID, "UTF-8") //
-				+ "&client_secret=" + URLEncoder.encode(clientSecret, "UTF-8") //
-				+ "&grant_type=authorization_code");
+		exchangeAuthorizationCode(token, authorizationCode);
+		if (INFO) info(category, "Access token stored.");
+	}
+
+	/** Waits for an authorization to complete.
+	 * @throws IOException if the authorization failed or the thread was interrupted. */
+	static private void await (Future<Token> future) throws IOException {
 		try {
-			token.refreshToken = json.getString("refresh_token", null);
-			token.accessToken = json.getString("access_token");
-			token.expirationMillis = System.currentTimeMillis() + json.getInt("expires_in", Integer.MAX_VALUE) * 1000;
-		} catch (Throwable ex) {
-			throw new IOException("Invalid access token response" + (json != null ? ": " + json : "."), ex);
+			future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for authorization.", ex);
+		} catch (CancellationException ex) {
+			throw new IOException("Authorization cancelled.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
 		}
+	}
 
-		if (INFO) info(category, "Access token stored.");
+	/** Starts an authorization that is completed by the {@link #setRedirectListener(RedirectListener) redirect listener}. The user
+	 * must visit the returned {@link Authorization#url URL} and allow access. When the redirect is received, the authorization code
+	 * is exchanged using {@link #exchangeAuthorizationCodeAsync(Token, String, Callback)}. Many authorizations can be in progress
+	 * at once.
+	 * @param callback May be null. */
+	public Authorization startAuthorization (Token token, Callback<Token> callback) {
+		return startAuthorization(token, authorizationURL(), callback);
+	}
+
+	private Authorization startAuthorization (final Token token, String url, Callback<Token> callback) {
+		final RedirectListener redirectListener = this.redirectListener;
+		if (redirectListener == null) throw new IllegalStateException("A redirect listener has not been set.");
+		if (templates.clientSecret == null) throw new UnsupportedOperationException();
+
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder buffer = new StringBuilder(32);
+		for (byte b : bytes)
+			buffer.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		String state = buffer.toString();
+
+		final Task<Token> task = new Task<>();
+		task.addCallback(callback);
+		redirectListener.expect(state, new Callback<String>() {
+			public void completed (String authorizationCode) {
+				if (TRACE) trace(category, "Authorization code received.");
+				exchangeAuthorizationCodeAsync(token, authorizationCode, task);
+			}
+
+			public void failed (Throwable ex) {
+				task.failed(ex);
+			}
+		});
+		return new Authorization(url + "&state=" + state, state, task, redirectListener);
+	}
+
+	/** Starts the device authorization grant (RFC 8628) for devices that cannot open a browser. The user must visit the returned
+	 * {@link DeviceAuthorization#verificationURL verification URL} on another device and enter the
+	 * {@link DeviceAuthorization#userCode user code}. The token endpoint is then polled until the user approves or denies access,
+	 * or the device code expires.
+	 * <p>
+	 * All pending device authorizations are polled by a single thread, using the transport when it is an {@link AsyncTransport},
+	 * else using the {@link #setExecutor(Executor) executor}. The interval from the server is respected and increased when the
+	 * server responds with slow_down. When a poll request fails, the wait for that device is doubled.
+	 * @param callback May be null. Notified with the token when the user approves access.
+	 * @throws IOException if the device authorization request failed. */
+	public DeviceAuthorization startDeviceAuthorization (Token token, Callback<Token> callback) throws IOException {
+		String url = deviceAuthorizationURL;
+		if (url == null) throw new IllegalStateException("A device authorization URL has not been set.");
+		if (TRACE) trace(category, "Requesting device authorization.");
+		long requestMillis = clock.millis();
+		Response response = transport.post(url, templates.deviceAuthorizationBody);
+		if (response.dateMillis != 0) updateClockSkew(requestMillis, response.dateMillis);
+		if (!response.isSuccess()) {
+			String body = new String(response.body, utf8).trim();
+			throw new IOException(response + (body.length() > 0 ? "\n" + body : ""));
+		}
+		TokenResponse device = TokenResponse.parse(response.body, TokenResponse.readDevice);
+		if (device.deviceCode == null || device.userCode == null || device.verificationURI == null)
+			throw new IOException("Invalid device authorization response: " + new String(response.body, utf8).trim());
+
+		// RFC 8628 specifies 5 seconds if the server does not provide an interval.
+		long intervalMillis = device.hasInterval ? Math.max(0, device.interval) * 1000 : 5000;
+		long expirationMillis = device.hasExpiresIn ? requestMillis + device.expiresIn * 1000 : Long.MAX_VALUE;
+		Task<Token> task = new Task<>();
+		task.addCallback(callback);
+		getDevicePoller().add(new DevicePoller.Device(token, device.deviceCode, intervalMillis, expirationMillis, task));
+		return new DeviceAuthorization(device.userCode, device.verificationURI, device.verificationURIComplete, expirationMillis,
+			task);
+	}
+
+	private synchronized DevicePoller getDevicePoller () {
+		if (devicePoller == null) devicePoller = new DevicePoller(this, category);
+		return devicePoller;
+	}
+
+	byte[] deviceTokenBody (String deviceCode) {
+		return templates.deviceTokenBody(deviceCode);
+	}
+
+	/** Returns the body for a {@link TokenIntrospector} request, which authenticates with the client ID and secret. */
+	byte[] introspectionBody (String token) {
+		return templates.introspectionBody(token);
+	}
+
+	/** Uses the authorization code and {@link #setClientSecret(String) client secret} to obtain an access token, then sets the
+	 * values on the specified token. */
+	public void exchangeAuthorizationCode (Token token, String authorizationCode) throws IOException {
+		FormTemplates templates = this.templates;
+		if (templates.clientSecret == null) throw new UnsupportedOperationException();
+		if (TRACE) trace(category, "Requesting access token.");
+		long requestMillis = clock.millis();
+		exchanged(token, requestMillis, transport.post(accessTokenURL, templates.exchangeBody(authorizationCode)));
+	}
+
+	/** Calls {@link #exchangeAuthorizationCode(Token, String)} using the {@link #setExecutor(Executor) executor}. If the
+	 * transport is an {@link AsyncTransport}, the request is made without blocking a thread and the callback is notified on the
+	 * transport's thread.
+	 * @param callback May be null.
+	 * @return A future that provides the specified token. */
+	public Future<Token> exchangeAuthorizationCodeAsync (final Token token, final String authorizationCode,
+		Callback<Token> callback) {
+		if (!(transport instanceof AsyncTransport)) {
+			Task<Token> task = new Task<Token>(new Callable<Token>() {
+				public Token call () throws IOException {
+					exchangeAuthorizationCode(token, authorizationCode);
+					return token;
+				}
+			});
+			task.addCallback(callback);
+			getExecutor().execute(task);
+			return task;
+		}
+
+		final Task<Token> task = new Task<>();
+		task.addCallback(callback);
+		FormTemplates templates = this.templates;
+		if (templates.clientSecret == null) {
+			task.failed(new UnsupportedOperationException());
+			return task;
+		}
+		byte[] body = templates.exchangeBody(authorizationCode);
+		if (TRACE) trace(category, "Requesting access token.");
+		final long requestMillis = clock.millis();
+		((AsyncTransport)transport).post(accessTokenURL, body, new Callback<Response>() {
+			public void completed (Response response) {
+				try {
+					exchanged(token, requestMillis, response);
+				} catch (Throwable ex) {
+					task.failed(ex);
+					return;
+				}
+				task.completed(token);
+			}
+
+			public void failed (Throwable ex) {
+				task.failed(ex);
+			}
+		});
+		return task;
+	}
+
+	/** Sets the values from an authorization code or device token response on the token. */
+	void exchanged (Token token, long requestMillis, Response response) throws IOException {
+		TokenResponse tokenResponse = parse(requestMillis, response, 0);
+		token.set(tokenResponse.accessToken, tokenResponse.refreshToken, expiration(requestMillis, tokenResponse));
 	}
 
 	/** Refreshes the access token, if necessary. Call this method just before each use of the access token. Some OAuth access
 	 * tokens never expire and do not provide a refresh token, in which case this method is not needed.
+	 * <p>
+	 * If multiple threads call this method for the same token, only one refreshes the token and the others wait for it to finish.
 	 * @return true if the token was refreshed. */
 	public boolean refreshAccessToken (Token token) {
-		if (!token.isExpired()) return false;
-		if (TRACE) trace(category, "Refreshing access token.");
-
-		if (token.refreshToken == null) {
-			if (ERROR) error(category, "Refresh token is missing.");
+		Future<Boolean> refresh = refreshAccessTokenFuture(token);
+		try {
+			return refresh.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException ex) {
+			if (ERROR) error(category, "Error refreshing access token.", ex.getCause());
 			return false;
 		}
+	}
+
+	/** Same as {@link #refreshAccessToken(Token)}, except if another thread is already refreshing the token then the refresh in
+	 * progress is returned rather than waiting for it to complete.
+	 * @return A future that is done, unless another thread is refreshing the token. */
+	public Future<Boolean> refreshAccessTokenFuture (Token token) {
+		long marginMillis = expirationMarginMillis;
+		if (token.getSnapshot().expirationMillis - marginMillis >= clock.millis()) return notRefreshed;
+		return refresh(token, marginMillis, false, null);
+	}
+
+	/** Same as {@link #refreshAccessToken(Token)}, except the refresh is done using the {@link #setExecutor(Executor) executor}
+	 * and the calling thread does not wait for it. If the token is already being refreshed, the refresh in progress is returned.
+	 * <p>
+	 * If the transport is an {@link AsyncTransport}, the executor is not used. The request is made without blocking a thread and
+	 * the callback is notified on the transport's thread, so it must not block.
+	 * @param callback May be null.
+	 * @return A future that provides true if the token was refreshed. */
+	public Future<Boolean> refreshAccessTokenAsync (Token token, Callback<Boolean> callback) {
+		long marginMillis = expirationMarginMillis;
+		if (token.getSnapshot().expirationMillis - marginMillis >= clock.millis()) {
+			if (callback != null) callback.completed(false);
+			return notRefreshed;
+		}
+		return refresh(token, marginMillis, true, callback);
+	}
+
+	/** Calls {@link #refreshAll(Collection, int)} with the connection pool size (or 4 if an HTTP client or transport was
+	 * provided). */
+	public BatchResult refreshAll (Collection<Token> tokens) {
+		return refreshAll(tokens, connectionPoolSize);
+	}
+
+	/** Refreshes the tokens that need to be refreshed and waits for the refreshes to complete. Tokens that do not need to be
+	 * refreshed are skipped. At most the specified number of refreshes are in progress at once, so the connection pool is not
+	 * oversubscribed.
+	 * <p>
+	 * If the transport is an {@link AsyncTransport}, the refreshes are made like
+	 * {@link #refreshAccessTokenAsync(Token, Callback)} without blocking a thread. Otherwise the batch uses its own threads, one
+	 * for each concurrent refresh, rather than the {@link #setExecutor(Executor) executor}, so the concurrency is not limited by
+	 * the executor's size.
+	 * @param maxConcurrent Usually the connection pool size. */
+	public BatchResult refreshAll (Collection<Token> tokens, int maxConcurrent) {
+		if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be > 0: " + maxConcurrent);
+		long start = System.nanoTime();
+
+		int count = tokens.size();
+		Token[] tokenArray = tokens.toArray(new Token[count]);
+		long marginMillis = expirationMarginMillis;
+		boolean interrupted = false;
+		Future<Boolean>[] futures;
+		if (transport instanceof AsyncTransport)
+			futures = refreshAllAsync(tokenArray, maxConcurrent, marginMillis);
+		else
+			futures = refreshAllBlocking(tokenArray, maxConcurrent, marginMillis);
+		// Clear the interrupt flag so the futures can be checked, then restore it below.
+		if (Thread.interrupted()) interrupted = true;
+
+		BatchResult result = new BatchResult(count);
+		for (int i = 0; i < count; i++) {
+			Token token = tokenArray[i];
+			Future<Boolean> future = futures[i];
+			Outcome outcome;
+			if (future == null) {
+				boolean expiring = token.getSnapshot().expirationMillis - marginMillis < clock.millis();
+				outcome = expiring ? Outcome.failed : Outcome.skipped;
+			} else {
+				try {
+					if (future.get())
+						outcome = Outcome.refreshed;
+					else {
+						// False if the refresh failed or another thread refreshed the token.
+						boolean expiring = token.getSnapshot().expirationMillis - marginMillis < clock.millis();
+						outcome = expiring ? Outcome.failed : Outcome.skipped;
+					}
+				} catch (InterruptedException ex) {
+					interrupted = true;
+					outcome = Outcome.failed;
+				} catch (ExecutionException | CancellationException ex) {
+					outcome = Outcome.failed;
+				}
+			}
+			result.add(token, outcome);
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+
+		result.elapsedMillis = (System.nanoTime() - start) / 1000000;
+		if (DEBUG) debug(category, "Refreshed access tokens: " + result);
+		return result;
+	}
+
+	/** Starts the refreshes using the async transport, waiting for a permit before each so at most maxConcurrent are in progress.
+	 * If interrupted, the remaining tokens are not refreshed and the interrupt flag is set.
+	 * @return A future for each token, null if it was not refreshed. */
+	private Future<Boolean>[] refreshAllAsync (Token[] tokenArray, int maxConcurrent, long marginMillis) {
+		final Semaphore permits = new Semaphore(maxConcurrent);
+		Callback<Boolean> release = new Callback<Boolean>() {
+			public void completed (Boolean result) {
+				permits.release();
+			}
+
+			public void failed (Throwable ex) {
+				permits.release();
+			}
+		};
+
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		Future<Boolean>[] futures = new Future[tokenArray.length];
+		boolean interrupted = false;
+		for (int i = 0, n = tokenArray.length; i < n; i++) {
+			Token token = tokenArray[i];
+			Future<Boolean> future = null;
+			if (!interrupted && token.getSnapshot().expirationMillis - marginMillis < clock.millis()) {
+				try {
+					permits.acquire();
+					future = refresh(token, marginMillis, true, release);
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (RuntimeException ex) {
+					if (ERROR) error(category, "Unable to refresh access token.", ex);
+				}
+			}
+			futures[i] = future;
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		return futures;
+	}
+
+	/** Refreshes the tokens on maxConcurrent new threads, each refreshing one token at a time on the calling thread.
+	 * If interrupted, the threads stop starting refreshes, those in progress are waited for, and the interrupt flag is set.
+	 * @return A future for each token, null if it was not refreshed. */
+	private Future<Boolean>[] refreshAllBlocking (final Token[] tokenArray, int maxConcurrent, final long marginMillis) {
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		final Future<Boolean>[] futures = new Future[tokenArray.length];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+		Runnable worker = new Runnable() {
+			public void run () {
+				for (int i; !stop.get() && (i = next.getAndIncrement()) < tokenArray.length;) {
+					Token token = tokenArray[i];
+					if (token.getSnapshot().expirationMillis - marginMillis >= clock.millis()) continue;
+					try {
+						Future<Boolean> future = refresh(token, marginMillis, false, null);
+						// Another thread may be refreshing the token, so wait for it before refreshing the next one.
+						future.get();
+						futures[i] = future;
+					} catch (InterruptedException ex) {
+						return;
+					} catch (ExecutionException ex) {
+						if (ERROR) error(category, "Error refreshing access token.", ex.getCause());
+					} catch (RuntimeException ex) {
+						if (ERROR) error(category, "Unable to refresh access token.", ex);
+					}
+				}
+			}
+		};
+
+		int threadCount = Math.min(maxConcurrent, tokenArray.length);
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = newThread(worker, "OAuth refreshAll: " + category);
+			threads[i].start();
+		}
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (true) {
+				try {
+					thread.join();
+					break;
+				} catch (InterruptedException ex) {
+					// Stop starting refreshes, but wait for those in progress so the results are stable.
+					interrupted = true;
+					stop.set(true);
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		return futures;
+	}
+
+	/** Returns an access token for the application itself, obtained with the client credentials grant using the
+	 * {@link #setClientSecret(String) client secret}, or with the JWT bearer grant if a {@link #setJwtAssertion(JwtAssertion) JWT
+	 * assertion} has been set. A token is cached for each set of scopes and shared by all threads. Within the
+	 * {@link #setRefreshLeadMillis(long) refresh lead} of its expiration, or half its lifetime if that is shorter, a new token is
+	 * requested in the background while the cached token continues to be returned. Only when there is no unexpired token does the
+	 * calling thread wait. Concurrent requests for the same scopes share a single request.
+	 * @param scopes Space separated, may be null. The order does not matter.
+	 * @throws IOException if a token could not be obtained. */
+	public Snapshot getClientCredentialsToken (String scopes) throws IOException {
+		if (templates.clientSecret == null && jwtAssertion == null) throw new UnsupportedOperationException();
+		String key = scopeKey(scopes);
+		ClientToken token = clientTokens.get(key);
+		if (token != null) {
+			Snapshot snapshot = token.snapshot;
+			long now = clock.millis();
+			if (snapshot.expirationMillis - expirationMarginMillis >= now) {
+				if (token.refreshMillis <= now) {
+					try {
+						requestClientCredentials(key, true);
+					} catch (RuntimeException ex) {
+						if (ERROR) error(category, "Unable to request client credentials token.", ex);
+					}
+				}
+				return snapshot;
+			}
+		}
+		try {
+			return requestClientCredentials(key, false).get().snapshot;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for client credentials token.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** Calls {@link #getClientCredentialsToken(String)} and returns the access token. */
+	public String getClientCredentialsAccessToken (String scopes) throws IOException {
+		return getClientCredentialsToken(scopes).accessToken;
+	}
+
+	/** Discards the cached client credentials tokens, so new tokens are requested when next needed. */
+	public void clearClientCredentialsTokens () {
+		clientTokens.clear();
+	}
+
+	/** Sorts the scopes so the same set always has the same key, which is also the scope parameter sent. */
+	static private String scopeKey (String scopes) {
+		if (scopes == null) return "";
+		scopes = scopes.trim();
+		if (scopes.length() == 0) return "";
+		String[] names = scopes.split("\\s+");
+		if (names.length == 1) return names[0];
+		Arrays.sort(names);
+		StringBuilder buffer = new StringBuilder(scopes.length());
+		buffer.append(names[0]);
+		for (int i = 1; i < names.length; i++) {
+			if (names[i].equals(names[i - 1])) continue;
+			buffer.append(' ');
+			buffer.append(names[i]);
+		}
+		return buffer.toString();
+	}
+
+	/** Requests a client credentials token for the scopes, unless a request is already in progress. Like
+	 * {@link #refresh(Token, long, boolean, Callback)}, the request is made using the transport when it is an
+	 * {@link AsyncTransport} and async is true, else using the executor if async is true, else on the calling thread. */
+	private Future<ClientToken> requestClientCredentials (final String scopes, boolean async) {
+		final boolean nonblocking = async && transport instanceof AsyncTransport;
+		Task<ClientToken> request;
+		if (nonblocking) {
+			request = new Task<ClientToken>() {
+				protected void done () {
+					clientRequests.remove(scopes, this);
+					super.done();
+				}
+			};
+		} else {
+			request = new Task<ClientToken>(new Callable<ClientToken>() {
+				public ClientToken call () throws IOException {
+					long requestMillis = clock.millis();
+					byte[] body = clientCredentialsBody(scopes);
+					if (body == null) return clientTokens.get(scopes);
+					return clientCredentialsReceived(scopes, requestMillis, transport.post(accessTokenURL, body));
+				}
+			}) {
+				protected void done () {
+					clientRequests.remove(scopes, this);
+					super.done();
+				}
+			};
+		}
+		Task<ClientToken> existing = clientRequests.putIfAbsent(scopes, request);
+		if (existing != null) return existing;
+		if (nonblocking)
+			requestClientCredentialsAsync(scopes, request);
+		else if (!async)
+			request.run();
+		else {
+			try {
+				getExecutor().execute(request);
+			} catch (RuntimeException ex) {
+				request.cancel(false);
+				throw ex;
+			}
+		}
+		return request;
+	}
+
+	private void requestClientCredentialsAsync (final String scopes, final Task<ClientToken> task) {
+		final long requestMillis = clock.millis();
+		byte[] body;
+		try {
+			body = clientCredentialsBody(scopes);
+		} catch (Throwable ex) {
+			task.failed(ex);
+			return;
+		}
+		if (body == null) {
+			task.completed(clientTokens.get(scopes));
+			return;
+		}
+		((AsyncTransport)transport).post(accessTokenURL, body, new Callback<Response>() {
+			public void completed (Response response) {
+				ClientToken token;
+				try {
+					token = clientCredentialsReceived(scopes, requestMillis, response);
+				} catch (Throwable ex) {
+					failed(ex);
+					return;
+				}
+				task.completed(token);
+			}
+
+			public void failed (Throwable ex) {
+				if (ERROR) error(category, "Error requesting client credentials token.", ex);
+				task.failed(ex);
+			}
+		});
+	}
+
+	/** @return The request body, or null if another request obtained a token that does not need to be requested again. */
+	private byte[] clientCredentialsBody (String scopes) {
+		// Another thread may have obtained a token between the expiration check and this request starting.
+		ClientToken token = clientTokens.get(scopes);
+		if (token != null && token.refreshMillis > clock.millis()) return null;
+		FormTemplates templates = this.templates;
+		JwtAssertion jwtAssertion = this.jwtAssertion;
+		if (jwtAssertion != null) {
+			if (TRACE) trace(category, "Requesting JWT bearer token: " + scopes);
+			return templates.jwtBearerBody(jwtAssertion.get(scopes, clock.millis() + clockSkewMillis), scopes);
+		}
+		if (templates.clientSecret == null) throw new UnsupportedOperationException();
+		if (TRACE) trace(category, "Requesting client credentials token: " + scopes);
+		return templates.clientCredentialsBody(scopes);
+	}
+
+	private ClientToken clientCredentialsReceived (String scopes, long requestMillis, Response response) throws IOException {
+		TokenResponse tokenResponse = parse(requestMillis, response, 0);
+		long expirationMillis = expiration(requestMillis, tokenResponse);
+		Snapshot snapshot = new Snapshot(tokenResponse.accessToken, null, expirationMillis);
+		ClientToken token = new ClientToken(snapshot, expirationMillis - refreshLead(expirationMillis - requestMillis));
+		clientTokens.put(scopes, token);
+		if (DEBUG) debug(category, "Client credentials token obtained: " + scopes);
+		return token;
+	}
+
+	/** Returns the {@link #setRefreshLeadMillis(long) refresh lead} for a token with the specified remaining lifetime. The lead is
+	 * at most half the lifetime, so a token whose lifetime is not longer than the lead is not due for refresh as soon as it is
+	 * obtained. */
+	long refreshLead (long lifetimeMillis) {
+		return Math.min(refreshLeadMillis, Math.max(0, lifetimeMillis / 2));
+	}
+
+	/** Calls {@link #exchangeToken(String, String, String, String)} for an access token. */
+	public Snapshot exchangeToken (String subjectToken, String audience, String scopes) throws IOException {
+		return exchangeToken(subjectToken, "urn:ietf:params:oauth:token-type:access_token", audience, scopes);
+	}
+
+	/** Exchanges the subject token for a token for the audience, using token exchange (RFC 8693). The result is cached until it
+	 * expires, keyed by a hash of the subject token and the audience and scopes, so repeated exchanges for the same subject token
+	 * do not make a request. Concurrent exchanges of the same subject token share a single request. A token without an expiration
+	 * is not cached.
+	 * @param subjectTokenType Eg urn:ietf:params:oauth:token-type:access_token or urn:ietf:params:oauth:token-type:jwt.
+	 * @param audience May be null.
+	 * @param scopes Space separated, may be null. The order does not matter.
+	 * @throws IOException if the exchange failed. */
+	public Snapshot exchangeToken (final String subjectToken, final String subjectTokenType, final String audience,
+		String scopes) throws IOException {
+		if (subjectToken == null) throw new IllegalArgumentException("subjectToken cannot be null.");
+		if (subjectTokenType == null) throw new IllegalArgumentException("subjectTokenType cannot be null.");
+		final String scopeKey = scopeKey(scopes);
+		// Audiences are URIs and scopes do not contain newlines, so the qualifier is unambiguous.
+		final TokenCache.Key key = TokenCache.key(subjectToken,
+			subjectTokenType + '\n' + (audience != null ? audience : "") + '\n' + scopeKey);
+		Snapshot snapshot = exchanges.get(key, clock.millis() + expirationMarginMillis);
+		if (snapshot != null) return snapshot;
+
+		Task<Snapshot> request = new Task<Snapshot>(new Callable<Snapshot>() {
+			public Snapshot call () throws IOException {
+				// Another thread may have cached a token between the cache check and this request starting.
+				long requestMillis = clock.millis();
+				Snapshot snapshot = exchanges.get(key, requestMillis + expirationMarginMillis);
+				if (snapshot != null) return snapshot;
+				if (TRACE) trace(category, "Exchanging token: " + audience + ", " + scopeKey);
+				byte[] body = templates.tokenExchangeBody(subjectToken, subjectTokenType, audience, scopeKey);
+				TokenResponse tokenResponse = parse(requestMillis, transport.post(accessTokenURL, body), 0);
+				snapshot = new Snapshot(tokenResponse.accessToken, tokenResponse.refreshToken,
+					expiration(requestMillis, tokenResponse));
+				long expirationMillis = snapshot.expirationMillis;
+				if (expirationMillis != Long.MAX_VALUE) exchanges.put(key, snapshot, expirationMillis, clock.millis());
+				return snapshot;
+			}
+		}) {
+			protected void done () {
+				exchangeRequests.remove(key, this);
+				super.done();
+			}
+		};
+		Task<Snapshot> existing = exchangeRequests.putIfAbsent(key, request);
+		if (existing != null)
+			request = existing;
+		else
+			request.run();
+		try {
+			return request.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for token exchange.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** Discards the cached {@link #exchangeToken(String, String, String, String) exchanged tokens}. */
+	public void clearExchangedTokens () {
+		exchanges.clear();
+	}
+
+	public int getExchangeCacheSize () {
+		return exchanges.getMaxSize();
+	}
+
+	/** Sets the maximum number of exchanged tokens to cache. Default is 10000. */
+	public void setExchangeCacheSize (int exchangeCacheSize) {
+		exchanges.setMaxSize(exchangeCacheSize);
+	}
+
+	/** Refreshes the token if it expires within the lead time. If the token is already being refreshed, the refresh in progress is
+	 * returned.
+	 * @param async If false, the refresh is done on the calling thread. If true, the refresh is done using the transport when it is
+	 *           an {@link AsyncTransport}, else using the {@link #getExecutor() executor}. */
+	Future<Boolean> refresh (final Token token, final long leadMillis, boolean async, Callback<Boolean> callback) {
+		final boolean nonblocking = async && transport instanceof AsyncTransport;
+		Task<Boolean> refresh;
+		if (nonblocking) {
+			refresh = new Task<Boolean>() {
+				protected void done () {
+					refreshes.remove(token, this);
+					super.done();
+				}
+			};
+		} else {
+			refresh = new Task<Boolean>(new Callable<Boolean>() {
+				public Boolean call () {
+					return refreshNow(token, leadMillis);
+				}
+			}) {
+				protected void done () {
+					refreshes.remove(token, this);
+					super.done();
+				}
+			};
+		}
+		Task<Boolean> existing = refreshes.putIfAbsent(token, refresh);
+		if (existing != null) {
+			existing.addCallback(callback);
+			return existing;
+		}
+		refresh.addCallback(callback);
+		if (nonblocking)
+			refreshAsync(token, leadMillis, refresh);
+		else if (!async)
+			refresh.run();
+		else {
+			try {
+				getExecutor().execute(refresh);
+			} catch (RuntimeException ex) {
+				refresh.cancel(false);
+				throw ex;
+			}
+		}
+		return refresh;
+	}
 
-		JsonValue json = null;
+	private boolean refreshNow (Token token, long leadMillis) {
+		Snapshot snapshot = token.getSnapshot();
+		Boolean result = beforeRefresh(token, snapshot, leadMillis);
+		if (result != null) return result;
 		try {
-			json = post(accessTokenURL, //
-				"refresh_token=" + URLEncoder.encode(token.refreshToken, "UTF-8") //
-					+ "&client_id=" + URLEncoder.encode(clientID, "UTF-8") //
-					+ "&client_secret=" + URLEncoder.encode(clientSecret, "UTF-8") //
-					+ "&grant_type=refresh_token");
-			token.accessToken = json.getString("access_token");
-			token.expirationMillis = System.currentTimeMillis() + json.getInt("expires_in") * 1000;
-			if (DEBUG) debug(category, "Access token refreshed.");
+			long requestMillis = clock.millis();
+			refreshed(token, snapshot, requestMillis, transport.post(accessTokenURL, templates.refreshBody(snapshot.refreshToken)));
 			return true;
 		} catch (Throwable ex) {
-			if (ERROR) error(category, "Error refreshing access token" + (json != null ? ": " + json : "."), ex);
+			if (ERROR) error(category, "Error refreshing access token.", ex);
 			return false;
 		}
 	}
 
-	private JsonValue post (String url, String postBody) throws IOException {
-		HttpPost request = new HttpPost(url);
-		request.setEntity(new StringEntity(postBody));
-		request.setHeader("Content-Type", "application/x-www-form-urlencoded");
-
-		HttpEntity entity = null;
-		CloseableHttpResponse response = null;
+	/** Same as {@link #refreshNow(Token, long)}, except the request is made without blocking and the task is completed when the
+	 * response is received. */
+	private void refreshAsync (final Token token, long leadMillis, final Task<Boolean> task) {
+		final Snapshot snapshot = token.getSnapshot();
+		final long requestMillis;
+		byte[] body;
 		try {
-			response = http.execute(request);
-			String body = "";
-			entity = response.getEntity();
-			if (entity != null) {
-				Scanner scanner = null;
+			Boolean result = beforeRefresh(token, snapshot, leadMillis);
+			if (result != null) {
+				task.completed(result);
+				return;
+			}
+			requestMillis = clock.millis();
+			body = templates.refreshBody(snapshot.refreshToken);
+		} catch (Throwable ex) {
+			if (ERROR) error(category, "Error refreshing access token.", ex);
+			task.completed(false);
+			return;
+		}
+		((AsyncTransport)transport).post(accessTokenURL, body, new Callback<Response>() {
+			public void completed (Response response) {
 				try {
-					scanner = new Scanner(entity.getContent(), "UTF-8").useDelimiter("\\A");
-					if (scanner.hasNext()) body = scanner.next().trim();
-				} finally {
-					if (scanner != null) {
-						try {
-							scanner.close();
-						} catch (Throwable ignored) {
-						}
-					}
+					refreshed(token, snapshot, requestMillis, response);
+				} catch (Throwable ex) {
+					failed(ex);
+					return;
 				}
+				task.completed(true);
 			}
 
-			int status = response.getStatusLine().getStatusCode();
-			if (status < 200 || status >= 300)
-				throw new IOException(response.getStatusLine().toString() + (body.length() > 0 ? "\n" + body : ""));
-			return new JsonReader().parse(body);
-		} finally {
-			if (entity != null) EntityUtils.consumeQuietly(entity);
-			if (response != null) {
-				try {
-					response.close();
-				} catch (Throwable ignored) {
+			public void failed (Throwable ex) {
+				if (ERROR) error(category, "Error refreshing access token.", ex);
+				task.completed(false);
+			}
+		});
+	}
+
+	/** Checks whether the token can be refreshed without a request.
+	 * @return The refresh result, or null if a request is needed. */
+	private Boolean beforeRefresh (Token token, Snapshot snapshot, long leadMillis) {
+		// Another thread may have refreshed the token between the expiration check and this refresh starting.
+		if (snapshot.expirationMillis - leadMillis > clock.millis()) return false;
+		if (TRACE) trace(category, "Refreshing access token.");
+
+		if (snapshot.refreshToken == null) {
+			if (ERROR) error(category, "Refresh token is missing.");
+			return false;
+		}
+
+		// If the refresh token was recently rotated by a refresh for a different token object, use that result rather than reusing
+		// the old refresh token, which the server may reject or treat as a stolen token.
+		Rotation rotation = rotations.get(snapshot.refreshToken);
+		if (rotation != null && rotation.expireMillis > clock.millis()) {
+			Snapshot rotated = rotation.snapshot;
+			token.set(rotated.accessToken, rotated.refreshToken, rotated.expirationMillis);
+			if (DEBUG) debug(category, "Access token refreshed from rotated refresh token.");
+			return true;
+		}
+		return null;
+	}
+
+	/** Sets the values from a refresh response on the token. */
+	private void refreshed (Token token, Snapshot snapshot, long requestMillis, Response response) throws IOException {
+		TokenResponse tokenResponse = parse(requestMillis, response, 0);
+		// The server may rotate the refresh token, in which case the old one is no longer valid.
+		String refreshToken = tokenResponse.refreshToken != null ? tokenResponse.refreshToken : snapshot.refreshToken;
+		token.set(tokenResponse.accessToken, refreshToken, expiration(requestMillis, tokenResponse));
+		if (!refreshToken.equals(snapshot.refreshToken)) rotated(snapshot.refreshToken, token.getSnapshot());
+		if (DEBUG) debug(category, "Access token refreshed.");
+	}
+
+	/** Remembers the result of refreshing with an old refresh token for the rotation grace period. */
+	private void rotated (String oldRefreshToken, Snapshot snapshot) {
+		long graceMillis = rotationGraceMillis;
+		if (graceMillis <= 0) return;
+		long now = clock.millis();
+		for (Rotation head; (head = rotationQueue.peek()) != null && head.expireMillis <= now;) {
+			rotationQueue.poll();
+			rotations.remove(head.oldRefreshToken, head);
+		}
+		Rotation rotation = new Rotation(oldRefreshToken, snapshot, now + graceMillis);
+		rotations.put(oldRefreshToken, rotation);
+		rotationQueue.add(rotation);
+	}
+
+	/** Returns the expiration for a token response. This is the expires_in seconds after the request was sent, which is slightly
+	 * before the server computed the expiration. The {@link #getClockSkewMillis() clock skew} is deliberately not applied, since
+	 * expires_in is relative and is measured from the local request time. If there is no expires_in, the expires_at seconds since
+	 * the epoch is adjusted for the clock skew.
+	 * @return Long.MAX_VALUE if the response has no expiration, or the request time if expires_in is negative so the token is
+	 *         considered expired. */
+	long expiration (long requestMillis, TokenResponse response) {
+		if (response.hasExpiresIn) {
+			long expiresIn = response.expiresIn;
+			if (expiresIn < 0) {
+				if (WARN) warn(category, "Token response has a negative expires_in: " + expiresIn);
+				return requestMillis;
+			}
+			if (expiresIn >= (Long.MAX_VALUE - requestMillis) / 1000) return Long.MAX_VALUE;
+			return requestMillis + expiresIn * 1000;
+		}
+		long expiresAt = response.expiresAt;
+		if (response.hasExpiresAt && expiresAt >= 0 && expiresAt < Long.MAX_VALUE / 1000) return expiresAt * 1000 - clockSkewMillis;
+		return Long.MAX_VALUE;
+	}
+
+	/** Refreshes the token in the background shortly before it expires, until {@link #cancelRefresh(Token)} is called. This avoids
+	 * {@link #refreshAccessToken(Token)} needing to wait for the refresh when the token is used.
+	 * @see #setRefreshLeadMillis(long) */
+	public void scheduleRefresh (Token token) {
+		getScheduler().add(token);
+	}
+
+	/** Stops refreshing the token in the background. */
+	public void cancelRefresh (Token token) {
+		RefreshScheduler scheduler;
+		synchronized (this) {
+			scheduler = this.scheduler;
+		}
+		if (scheduler != null) scheduler.remove(token);
+	}
+
+	private synchronized RefreshScheduler getScheduler () {
+		if (scheduler == null) scheduler = new RefreshScheduler(this, category);
+		return scheduler;
+	}
+
+	/** Returns the executor used for asynchronous operations and background refreshes. If none has been set, a fixed size thread
+	 * pool of daemon threads is created with the {@link #setExecutorThreads(int) executor threads} size. */
+	public synchronized Executor getExecutor () {
+		if (executor == null) {
+			createdExecutor = Executors.newFixedThreadPool(executorThreads, new ThreadFactory() {
+				public Thread newThread (Runnable runnable) {
+					return OAuth.this.newThread(runnable, "OAuth: " + category);
 				}
+			});
+			executor = createdExecutor;
+		}
+		return executor;
+	}
+
+	/** Uses a new virtual thread for each asynchronous operation and background refresh, and for the refresh scheduler thread if
+	 * it has not yet been started. Many refreshes can then wait on the network without a platform thread for each, so the
+	 * concurrency is limited only by the connection pool. Requires Java 21 or later.
+	 * <p>
+	 * OAuth holds no lock while making a request, but before Java 24 the Apache HttpClient used by default pins a virtual thread
+	 * to its carrier while it waits for a pooled connection, because its pool uses synchronized. When more requests are in
+	 * progress than the pool size, the waiting threads can occupy all the carriers. {@link JdkHttpClientTransport} does not pin
+	 * and is recommended with virtual threads.
+	 * <p>
+	 * If the executor was created by OAuth, it is shut down after its queued operations are done and replaced. An executor that
+	 * was {@link #setExecutor(Executor) set} is kept, and only the refresh scheduler thread is virtual.
+	 * @return false if virtual threads are not available. */
+	public synchronized boolean useVirtualThreads () {
+		try {
+			// Reflection is used so the library can be built for and run on older versions of Java.
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "OAuth: " + category + " ", 0L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			if (executor == null || executor == createdExecutor) {
+				ExecutorService virtualExecutor = (ExecutorService)Executors.class
+					.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+				if (createdExecutor != null) createdExecutor.shutdown();
+				createdExecutor = virtualExecutor;
+				executor = virtualExecutor;
 			}
+			virtualThreads = factory;
+			return true;
+		} catch (Exception ex) {
+			if (DEBUG) debug(category, "Virtual threads are not available.", ex);
+			return false;
+		}
+	}
+
+	/** Returns a daemon thread, or a virtual thread if {@link #useVirtualThreads()} was successful. */
+	synchronized Thread newThread (Runnable runnable, String name) {
+		if (virtualThreads != null) return virtualThreads.newThread(runnable);
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	public synchronized int getExecutorThreads () {
+		return executorThreads;
+	}
+
+	/** Sets the number of threads for the executor created when none has been {@link #setExecutor(Executor) set}. The threads
+	 * block while requests are made, so this limits how many asynchronous operations and background refreshes are in progress
+	 * when the transport is not an {@link AsyncTransport}. This is separate from the connection pool size, which also limits
+	 * requests made by threads calling {@link #refreshAccessToken(Token)}. Default is 4.
+	 * @throws IllegalStateException if the executor has already been created or set. */
+	public synchronized void setExecutorThreads (int executorThreads) {
+		if (executorThreads < 1) throw new IllegalArgumentException("executorThreads must be > 0: " + executorThreads);
+		if (executor != null) throw new IllegalStateException("The executor has already been created or set.");
+		this.executorThreads = executorThreads;
+	}
+
+	/** Sets the executor used for asynchronous operations and background refreshes. The executor's threads block while requests
+	 * are made, so its size is usually the number of concurrent requests to allow. If the previous executor was created by OAuth,
+	 * it is shut down after its queued operations are done. */
+	public synchronized void setExecutor (Executor executor) {
+		if (executor == null) throw new IllegalArgumentException("executor cannot be null.");
+		if (createdExecutor != null && createdExecutor != executor) {
+			createdExecutor.shutdown();
+			createdExecutor = null;
 		}
+		this.executor = executor;
+	}
+
+	/** Encodes a value for a URL query or form body. */
+	static String encode (String value) {
+		return new String(FormEncoder.encode(value), ascii);
+	}
+
+	/** Checks the response status and extracts the token fields from the JSON body.
+	 * @param requestMillis The time the request was sent, to estimate the clock skew.
+	 * @param fields The optional fields to read, see {@link TokenResponse#readScope}.
+	 * @throws IOException if the response is an error or has no access token. */
+	TokenResponse parse (long requestMillis, Response response, int fields) throws IOException {
+		if (response.dateMillis != 0) updateClockSkew(requestMillis, response.dateMillis);
+
+		if (!response.isSuccess()) {
+			String body = new String(response.body, utf8).trim();
+			throw new IOException(response + (body.length() > 0 ? "\n" + body : ""));
+		}
+		TokenResponse tokenResponse = TokenResponse.parse(response.body, fields);
+		if (tokenResponse.accessToken == null)
+			throw new IOException("Invalid access token response: " + new String(response.body, utf8).trim());
+		return tokenResponse;
+	}
+
+	/** Estimates the difference between the server's clock and the local clock from the response Date header. */
+	void updateClockSkew (long requestMillis, long dateMillis) {
+		// The Date header has a resolution of seconds, so on average the server time is 500ms later than the header.
+		long localMillis = requestMillis + (clock.millis() - requestMillis) / 2;
+		clockSkewMillis = dateMillis + 500 - localMillis;
+	}
+
+	public String getCategory () {
+		return category;
 	}
 
 	public String getClientID () {
@@ -221,13 +1126,13 @@ public class OAuth {
 
 	/** @return May be null. */
 	public String getClientSecret () {
-		return clientSecret;
+		return templates.clientSecret;
 	}
 
 	/** Sets the client secret for obtaining an access token. See {@link #obtainAccessToken(Token, String)} for the security
 	 * implications of embedded the client secret in your application. */
 	public void setClientSecret (String clientSecret) {
-		this.clientSecret = clientSecret;
+		templates = new FormTemplates(clientID, redirectURL, scopes, clientSecret);
 	}
 
 	public String getRedirectURL () {
@@ -246,13 +1151,362 @@ public class OAuth {
 		return scopes;
 	}
 
+	public RedirectListener getRedirectListener () {
+		return redirectListener;
+	}
+
+	/** Sets the listener that receives redirects for {@link #startAuthorization(Token, Callback)} and the default
+	 * {@link #obtainAccessToken(Token, String)}. The redirect URL must be the listener's {@link RedirectListener#getRedirectURL()
+	 * redirect URL}.
+	 * @param redirectListener May be null. */
+	public void setRedirectListener (RedirectListener redirectListener) {
+		this.redirectListener = redirectListener;
+	}
+
+	/** @return May be null. */
+	public String getDeviceAuthorizationURL () {
+		return deviceAuthorizationURL;
+	}
+
+	/** Sets the URL for {@link #startDeviceAuthorization(Token, Callback)}. When set, the default
+	 * {@link #obtainAccessToken(Token, String)} uses the device authorization grant.
+	 * @param deviceAuthorizationURL May be null. */
+	public void setDeviceAuthorizationURL (String deviceAuthorizationURL) {
+		this.deviceAuthorizationURL = deviceAuthorizationURL;
+	}
+
+	/** @return May be null. */
+	public JwtAssertion getJwtAssertion () {
+		return jwtAssertion;
+	}
+
+	/** Sets the assertion used by {@link #getClientCredentialsToken(String)} for the JWT bearer grant (RFC 7523), for servers
+	 * that require a signed assertion instead of a client secret. Cached tokens are discarded.
+	 * @param jwtAssertion May be null to use the client credentials grant. */
+	public void setJwtAssertion (JwtAssertion jwtAssertion) {
+		this.jwtAssertion = jwtAssertion;
+		clientTokens.clear();
+	}
+
+	public Transport getTransport () {
+		return transport;
+	}
+
+	public Clock getClock () {
+		return clock;
+	}
+
+	/** Sets the clock used to check and compute token expiration and to schedule refreshes. A {@link Clock.CoarseClock} makes
+	 * checking expiration cheaper when tokens are checked very frequently. Default is {@link Clock#system}. */
+	public void setClock (Clock clock) {
+		if (clock == null) throw new IllegalArgumentException("clock cannot be null.");
+		this.clock = clock;
+		RefreshScheduler scheduler;
+		synchronized (this) {
+			scheduler = this.scheduler;
+		}
+		if (scheduler != null) scheduler.wake();
+	}
+
+	public long getExpirationMarginMillis () {
+		return expirationMarginMillis;
+	}
+
+	/** Sets how long before expiration {@link #refreshAccessToken(Token)} considers a token expired. This avoids a token expiring
+	 * while a request using it is in progress. Default is 10 seconds. */
+	public void setExpirationMarginMillis (long expirationMarginMillis) {
+		this.expirationMarginMillis = expirationMarginMillis;
+	}
+
+	/** Returns the difference between the token server's clock and the local clock, as estimated from the Date header of the most
+	 * recent response. Positive values mean the server's clock is ahead. */
+	public long getClockSkewMillis () {
+		return clockSkewMillis;
+	}
+
+	public long getRotationGraceMillis () {
+		return rotationGraceMillis;
+	}
+
+	/** Some servers issue a new refresh token with each refresh and reject (or revoke all tokens on) reuse of the old one. When
+	 * multiple token objects share the same refresh token, for example in separate registries, this sets how long the result of
+	 * a refresh is reused for other tokens that still have the old refresh token, rather than refreshing again with it. Default
+	 * is 0, which disables reuse. */
+	public void setRotationGraceMillis (long rotationGraceMillis) {
+		this.rotationGraceMillis = rotationGraceMillis;
+	}
+
+	public long getRefreshLeadMillis () {
+		return refreshLeadMillis;
+	}
+
+	/** Sets how long before expiration a token is refreshed by {@link #scheduleRefresh(Token)}. The lead is at most half the
+	 * token's remaining lifetime, so short lived tokens are not refreshed as soon as they are obtained. Default is 5 minutes. */
+	public void setRefreshLeadMillis (long refreshLeadMillis) {
+		this.refreshLeadMillis = refreshLeadMillis;
+	}
+
+	public long getRefreshJitterMillis () {
+		return refreshJitterMillis;
+	}
+
+	/** Sets the size of the window before the {@link #setRefreshLeadMillis(long) lead time} in which a token is refreshed by
+	 * {@link #scheduleRefresh(Token)}. A random time in the window is chosen for each refresh, so tokens obtained at the same time
+	 * are refreshed at different times. The window is smaller for a token whose remaining lifetime is not much longer than the
+	 * lead. Default is 0. */
+	public void setRefreshJitterMillis (long refreshJitterMillis) {
+		this.refreshJitterMillis = refreshJitterMillis;
+	}
+
+	public int getMaxRefreshesPerSecond () {
+		return maxRefreshesPerSecond;
+	}
+
+	/** Sets the maximum number of refreshes per second done by {@link #scheduleRefresh(Token)}. Refreshes that are due are delayed
+	 * to stay under the limit. This does not limit {@link #refreshAccessToken(Token)}. Default is 0, for no limit. */
+	public void setMaxRefreshesPerSecond (int maxRefreshesPerSecond) {
+		this.maxRefreshesPerSecond = maxRefreshesPerSecond;
+	}
+
+	/** The parts of the token request bodies that do not change, encoded once. Only the code, refresh token, assertion, subject
+	 * token, or scopes are encoded for each request. Replaced when the client secret changes. */
+	static private class FormTemplates {
+		static private final byte[] codePrefix = "code=".getBytes(ascii), refreshPrefix = "refresh_token=".getBytes(ascii);
+		static private final byte[] scopePrefix = "scope=".getBytes(ascii), deviceCodePrefix = "device_code=".getBytes(ascii);
+		static private final byte[] assertionPrefix = "assertion=".getBytes(ascii);
+		static private final byte[] subjectTokenPrefix = "subject_token=".getBytes(ascii), tokenPrefix = "token=".getBytes(ascii);
+
+		final String clientSecret;
+		final byte[] exchangeSuffix, refreshSuffix, clientCredentialsSuffix, deviceTokenSuffix, jwtBearerSuffix;
+		final byte[] tokenExchangeSuffix, introspectionSuffix;
+		final byte[] deviceAuthorizationBody;
+
+		FormTemplates (String clientID, String redirectURL, String scopes, String clientSecret) {
+			this.clientSecret = clientSecret;
+			String client = (clientID != null ? "&client_id=" + encode(clientID) : "")
+				+ (clientSecret != null ? "&client_secret=" + encode(clientSecret) : "");
+			exchangeSuffix = ((redirectURL != null ? "&redirect_uri=" + encode(redirectURL) : "") + client
+				+ "&grant_type=authorization_code").getBytes(ascii);
+			refreshSuffix = (client + "&grant_type=refresh_token").getBytes(ascii);
+			clientCredentialsSuffix = (client + "&grant_type=client_credentials").getBytes(ascii);
+			deviceTokenSuffix = (client + "&grant_type=" + encode("urn:ietf:params:oauth:grant-type:device_code")).getBytes(ascii);
+			jwtBearerSuffix = (client + "&grant_type=" + encode("urn:ietf:params:oauth:grant-type:jwt-bearer")).getBytes(ascii);
+			tokenExchangeSuffix = (client + "&grant_type=" + encode("urn:ietf:params:oauth:grant-type:token-exchange"))
+				.getBytes(ascii);
+			introspectionSuffix = client.getBytes(ascii);
+			String deviceAuthorization = client + (scopes != null ? "&scope=" + encode(scopes) : "");
+			deviceAuthorizationBody = (deviceAuthorization.length() > 0 ? deviceAuthorization.substring(1) : "").getBytes(ascii);
+		}
+
+		byte[] exchangeBody (String authorizationCode) {
+			return body(codePrefix, authorizationCode, exchangeSuffix);
+		}
+
+		byte[] refreshBody (String refreshToken) {
+			return body(refreshPrefix, refreshToken, refreshSuffix);
+		}
+
+		byte[] deviceTokenBody (String deviceCode) {
+			return body(deviceCodePrefix, deviceCode, deviceTokenSuffix);
+		}
+
+		byte[] introspectionBody (String token) {
+			return body(tokenPrefix, token, introspectionSuffix);
+		}
+
+		/** @param scopes May be empty. */
+		byte[] jwtBearerBody (String assertion, String scopes) {
+			if (scopes.length() == 0) return body(assertionPrefix, assertion, jwtBearerSuffix);
+			return body(assertionPrefix, assertion, concat(("&scope=" + encode(scopes)).getBytes(ascii), jwtBearerSuffix));
+		}
+
+		/** @param audience May be null.
+		 * @param scopes May be empty. */
+		byte[] tokenExchangeBody (String subjectToken, String subjectTokenType, String audience, String scopes) {
+			String parameters = "&subject_token_type=" + encode(subjectTokenType) //
+				+ (audience != null ? "&audience=" + encode(audience) : "") //
+				+ (scopes.length() > 0 ? "&scope=" + encode(scopes) : "");
+			return body(subjectTokenPrefix, subjectToken, concat(parameters.getBytes(ascii), tokenExchangeSuffix));
+		}
+
+		static private byte[] concat (byte[] a, byte[] b) {
+			byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, bytes, a.length, b.length);
+			return bytes;
+		}
+
+		/** @param scopes May be empty. */
+		byte[] clientCredentialsBody (String scopes) {
+			if (scopes.length() == 0) return Arrays.copyOfRange(clientCredentialsSuffix, 1, clientCredentialsSuffix.length);
+			return body(scopePrefix, scopes, clientCredentialsSuffix);
+		}
+
+		static private byte[] body (byte[] prefix, String value, byte[] suffix) {
+			byte[] body = new byte[prefix.length + FormEncoder.length(value) + suffix.length];
+			System.arraycopy(prefix, 0, body, 0, prefix.length);
+			int offset = FormEncoder.encode(value, body, prefix.length);
+			System.arraycopy(suffix, 0, body, offset, suffix.length);
+			return body;
+		}
+	}
+
+	/** An authorization in progress, started by {@link OAuth#startAuthorization(Token, Callback)}. */
+	static public class Authorization {
+		/** The URL the user must visit to allow access. */
+		public final String url;
+		public final String state;
+		/** Provides the token once the authorization code has been exchanged. */
+		public final Future<Token> future;
+		private final RedirectListener redirectListener;
+
+		Authorization (String url, String state, Task<Token> future, RedirectListener redirectListener) {
+			this.url = url;
+			this.state = state;
+			this.future = future;
+			this.redirectListener = redirectListener;
+		}
+
+		/** Stops waiting for the redirect and cancels the future.
+		 * @return false if the redirect was already received. */
+		public boolean cancel () {
+			if (!redirectListener.cancel(state)) return false;
+			future.cancel(false);
+			return true;
+		}
+	}
+
+	/** A device authorization in progress, started by {@link OAuth#startDeviceAuthorization(Token, Callback)}. */
+	static public class DeviceAuthorization {
+		/** The code the user enters at the verification URL. */
+		public final String userCode;
+		/** The URL the user visits on another device. */
+		public final String verificationURL;
+		/** The verification URL including the user code, so the user does not need to enter it. May be null. */
+		public final String verificationURLComplete;
+		/** When the device code expires, or Long.MAX_VALUE if the server did not specify. */
+		public final long expirationMillis;
+		/** Provides the token once the user approves access. */
+		public final Future<Token> future;
+
+		DeviceAuthorization (String userCode, String verificationURL, String verificationURLComplete, long expirationMillis,
+			Future<Token> future) {
+			this.userCode = userCode;
+			this.verificationURL = verificationURL;
+			this.verificationURLComplete = verificationURLComplete;
+			this.expirationMillis = expirationMillis;
+			this.future = future;
+		}
+
+		/** Stops polling and cancels the future.
+		 * @return false if the authorization already completed. */
+		public boolean cancel () {
+			return future.cancel(false);
+		}
+	}
+
+	/** A cached client credentials token and when to request a new one. */
+	static private class ClientToken {
+		final Snapshot snapshot;
+		final long refreshMillis;
+
+		ClientToken (Snapshot snapshot, long refreshMillis) {
+			this.snapshot = snapshot;
+			this.refreshMillis = refreshMillis;
+		}
+	}
+
+	static private class Rotation {
+		final String oldRefreshToken;
+		final Snapshot snapshot;
+		final long expireMillis;
+
+		Rotation (String oldRefreshToken, Snapshot snapshot, long expireMillis) {
+			this.oldRefreshToken = oldRefreshToken;
+			this.snapshot = snapshot;
+			this.expireMillis = expireMillis;
+		}
+	}
+
+	static private final FutureTask<Boolean> notRefreshed = new FutureTask<Boolean>(new Callable<Boolean>() {
+		public Boolean call () {
+			return false;
+		}
+	});
+	static {
+		notRefreshed.run();
+	}
+
+	/** Stores the access token, refresh token, and expiration. OAuth updates the token using {@link #set(String, String, long)},
+	 * which publishes an immutable {@link Snapshot}. Threads using the token while it may be refreshed should use
+	 * {@link #getSnapshot()} so the access token and expiration are consistent.
+	 * <p>
+	 * The snapshot is authoritative. The public fields mirror it so the token can be serialized. If the fields are set directly,
+	 * the next {@link #getSnapshot()} sees that they differ from the snapshot and publishes them, but {@link #publish()} should
+	 * be called so other threads see all the new values at once. */
 	static public class Token {
 		public String refreshToken;
 		public String accessToken;
 		public long expirationMillis;
+		private transient volatile Snapshot snapshot;
+
+		/** Sets the fields and publishes a new snapshot. */
+		public synchronized void set (String accessToken, String refreshToken, long expirationMillis) {
+			this.accessToken = accessToken;
+			this.refreshToken = refreshToken;
+			this.expirationMillis = expirationMillis;
+			snapshot = new Snapshot(accessToken, refreshToken, expirationMillis);
+		}
+
+		/** Publishes a new snapshot using the current field values. */
+		public synchronized void publish () {
+			snapshot = new Snapshot(accessToken, refreshToken, expirationMillis);
+		}
+
+		/** Returns the values from the last {@link #set(String, String, long)} or {@link #publish()}. If the fields were set
+		 * directly since then, or neither has been called, the current field values are published. */
+		public Snapshot getSnapshot () {
+			Snapshot snapshot = this.snapshot;
+			if (snapshot != null && snapshot.accessToken == accessToken && snapshot.refreshToken == refreshToken
+				&& snapshot.expirationMillis == expirationMillis) return snapshot;
+			synchronized (this) {
+				// The fields may differ only because set is in progress on another thread.
+				snapshot = this.snapshot;
+				if (snapshot == null || snapshot.accessToken != accessToken || snapshot.refreshToken != refreshToken
+					|| snapshot.expirationMillis != expirationMillis) {
+					snapshot = new Snapshot(accessToken, refreshToken, expirationMillis);
+					this.snapshot = snapshot;
+				}
+				return snapshot;
+			}
+		}
 
+		/** Uses {@link Clock#system}. Use {@link #isExpired(Clock)} with {@link OAuth#getClock()} if a different clock was set. */
 		public boolean isExpired () {
-			return expirationMillis < System.currentTimeMillis();
+			return getSnapshot().isExpired(Clock.system);
+		}
+
+		public boolean isExpired (Clock clock) {
+			return getSnapshot().isExpired(clock);
+		}
+
+		/** An immutable copy of the token values. */
+		static public class Snapshot {
+			public final String accessToken, refreshToken;
+			public final long expirationMillis;
+
+			public Snapshot (String accessToken, String refreshToken, long expirationMillis) {
+				this.accessToken = accessToken;
+				this.refreshToken = refreshToken;
+				this.expirationMillis = expirationMillis;
+			}
+
+			public boolean isExpired () {
+				return isExpired(Clock.system);
+			}
+
+			public boolean isExpired (Clock clock) {
+				return expirationMillis < clock.millis();
+			}
 		}
 	}
 }
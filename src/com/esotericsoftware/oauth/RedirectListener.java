@@ -0,0 +1,398 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Receives OAuth redirects on a loopback address, so authorization codes are captured without the user pasting them. The
+ * listener's {@link #getRedirectURL() redirect URL} must be registered with the service and used as the {@link OAuth} redirect
+ * URL.
+ * <p>
+ * Each authorization is matched to its redirect by the state parameter, so many can be in progress at once on the same socket.
+ * A single selector thread accepts the connections and callbacks are notified on it, so they must not block.
+ * @see OAuth#setRedirectListener(RedirectListener) */
+public class RedirectListener implements Closeable {
+	static private final int maxRequestSize = 16 * 1024;
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final int port;
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final ArrayList<Connection> connections = new ArrayList<>();
+	private volatile long sessionTimeoutMillis = 10 * 60 * 1000, connectionTimeoutMillis = 10 * 1000;
+	private volatile boolean closed;
+	private long nextTimeoutCheck;
+
+	/** Listens on 127.0.0.1 using an ephemeral port. */
+	public RedirectListener () throws IOException {
+		this(0);
+	}
+
+	/** Listens on 127.0.0.1 using the specified port, or an ephemeral port if 0. */
+	public RedirectListener (int port) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 256);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ex) {
+			server.close();
+			selector.close();
+			throw ex;
+		}
+		this.port = server.socket().getLocalPort();
+
+		Thread thread = new Thread(new Runnable() {
+			public void run () {
+				RedirectListener.this.run();
+			}
+		}, "RedirectListener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Returns the port the listener is bound to. */
+	public int getPort () {
+		return port;
+	}
+
+	/** Returns the URL the service redirects to, eg <code>http://127.0.0.1:54321/</code>. */
+	public String getRedirectURL () {
+		return "http://127.0.0.1:" + port + "/";
+	}
+
+	/** Waits for a redirect with the specified state.
+	 * @param callback Notified with the authorization code, or with an IOException if the service redirects with an error, the
+	 *           session times out, or the listener is closed. */
+	public void expect (String state, Callback<String> callback) {
+		if (state == null) throw new IllegalArgumentException("state cannot be null.");
+		if (callback == null) throw new IllegalArgumentException("callback cannot be null.");
+		if (closed) {
+			callback.failed(new IOException("Listener is closed."));
+			return;
+		}
+		Session session = new Session(callback, System.currentTimeMillis() + sessionTimeoutMillis);
+		if (sessions.putIfAbsent(state, session) != null) throw new IllegalArgumentException("Duplicate state: " + state);
+		if (closed && sessions.remove(state, session)) session.failed(new IOException("Listener is closed."));
+	}
+
+	/** Stops waiting for a redirect with the specified state. The callback is not notified.
+	 * @return false if the session was not found. */
+	public boolean cancel (String state) {
+		return sessions.remove(state) != null;
+	}
+
+	/** Returns the number of redirects being waited for. */
+	public int getSessionCount () {
+		return sessions.size();
+	}
+
+	/** Fails all sessions in progress and stops listening. */
+	public void close () {
+		closed = true;
+		selector.wakeup();
+	}
+
+	void run () {
+		while (!closed) {
+			try {
+				selector.select(250);
+			} catch (IOException ex) {
+				if (ERROR) error("Error waiting for sockets.", ex);
+				break;
+			}
+
+			for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				if (!key.isValid()) continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection)key.attachment();
+				try {
+					connection.process();
+				} catch (IOException ex) {
+					if (DEBUG) debug("Redirect connection failed: " + ex.getMessage());
+					connection.close();
+				} catch (Throwable ex) {
+					if (ERROR) error("Error processing redirect connection.", ex);
+					connection.close();
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (now >= nextTimeoutCheck) {
+				nextTimeoutCheck = now + 100;
+				checkTimeouts(now);
+			}
+		}
+
+		for (Connection connection : new ArrayList<>(connections))
+			connection.close();
+		IOException ex = new IOException("Listener is closed.");
+		for (Iterator<Session> iter = sessions.values().iterator(); iter.hasNext();) {
+			Session session = iter.next();
+			iter.remove();
+			session.failed(ex);
+		}
+		try {
+			server.close();
+		} catch (IOException ignored) {
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private void accept () {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException ex) {
+				if (ERROR) error("Error accepting redirect connection.", ex);
+				return;
+			}
+			if (channel == null) return;
+			Connection connection = new Connection(channel);
+			try {
+				channel.configureBlocking(false);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (IOException ex) {
+				connection.close();
+				continue;
+			}
+			connections.add(connection);
+		}
+	}
+
+	private void checkTimeouts (long now) {
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Connection connection = connections.get(i);
+			if (now > connection.deadline) connection.close();
+		}
+		for (Iterator<Entry<String, Session>> iter = sessions.entrySet().iterator(); iter.hasNext();) {
+			Entry<String, Session> entry = iter.next();
+			Session session = entry.getValue();
+			if (now > session.deadline && sessions.remove(entry.getKey(), session))
+				session.failed(new SocketTimeoutException("Timed out waiting for the authorization redirect."));
+		}
+	}
+
+	/** Parses the request target and notifies the session with a matching state.
+	 * @return The response to send. */
+	private byte[] redirect (String target) {
+		int query = target.indexOf('?');
+		String code = null, state = null, error = null, description = null;
+		if (query != -1) {
+			for (String param : target.substring(query + 1).split("&")) {
+				int equals = param.indexOf('=');
+				if (equals == -1) continue;
+				String name = param.substring(0, equals), value = decode(param.substring(equals + 1));
+				if (name.equals("code"))
+					code = value;
+				else if (name.equals("state"))
+					state = value;
+				else if (name.equals("error"))
+					error = value;
+				else if (name.equals("error_description")) //
+					description = value;
+			}
+		}
+		Session session = state == null ? null : sessions.remove(state);
+		if (session == null) return response("404 Not Found", "Unknown authorization request.");
+		if (error != null) {
+			session.failed(new IOException("Authorization failed: " + error + (description != null ? ", " + description : "")));
+			return response("200 OK", "Authorization failed. You may close this window.");
+		}
+		if (code == null) {
+			session.failed(new IOException("Authorization redirect has no code."));
+			return response("400 Bad Request", "Authorization failed. You may close this window.");
+		}
+		session.completed(code);
+		return response("200 OK", "Authorization complete. You may close this window.");
+	}
+
+	static private String decode (String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		} catch (IllegalArgumentException ex) {
+			return value;
+		}
+	}
+
+	static private byte[] response (String status, String message) {
+		byte[] body = ("<html><body>" + message + "</body></html>").getBytes(OAuth.ascii);
+		byte[] headers = ("HTTP/1.1 " + status + "\r\n" //
+			+ "Content-Type: text/html; charset=US-ASCII\r\n" //
+			+ "Content-Length: " + body.length + "\r\n" //
+			+ "Cache-Control: no-store\r\n" //
+			+ "Connection: close\r\n\r\n").getBytes(OAuth.ascii);
+		byte[] response = new byte[headers.length + body.length];
+		System.arraycopy(headers, 0, response, 0, headers.length);
+		System.arraycopy(body, 0, response, headers.length, body.length);
+		return response;
+	}
+
+	public long getSessionTimeoutMillis () {
+		return sessionTimeoutMillis;
+	}
+
+	/** Sets how long to wait for the redirect after {@link #expect(String, Callback)}. Default is 10 minutes. */
+	public void setSessionTimeoutMillis (long sessionTimeoutMillis) {
+		this.sessionTimeoutMillis = sessionTimeoutMillis;
+	}
+
+	public long getConnectionTimeoutMillis () {
+		return connectionTimeoutMillis;
+	}
+
+	/** Sets how long a connection can take to send its request and receive the response. Browsers may open connections they
+	 * never use. Default is 10 seconds. */
+	public void setConnectionTimeoutMillis (long connectionTimeoutMillis) {
+		this.connectionTimeoutMillis = connectionTimeoutMillis;
+	}
+
+	static private class Session {
+		final Callback<String> callback;
+		final long deadline;
+
+		Session (Callback<String> callback, long deadline) {
+			this.callback = callback;
+			this.deadline = deadline;
+		}
+
+		void completed (String code) {
+			try {
+				callback.completed(code);
+			} catch (Throwable ex) {
+				if (ERROR) error("Error notifying callback.", ex);
+			}
+		}
+
+		void failed (IOException ex) {
+			try {
+				callback.failed(ex);
+			} catch (Throwable ex2) {
+				if (ERROR) error("Error notifying callback.", ex2);
+			}
+		}
+	}
+
+	/** A browser connection. Used only by the selector thread. */
+	private class Connection {
+		final SocketChannel channel;
+		final long deadline = System.currentTimeMillis() + connectionTimeoutMillis;
+		SelectionKey key;
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		ByteBuffer response;
+
+		Connection (SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void process () throws IOException {
+			if (response == null) {
+				if (channel.read(buffer) == -1) throw new IOException("Connection closed before the request was received.");
+				int end = headerEnd();
+				if (end == -1) {
+					if (buffer.hasRemaining()) return;
+					if (buffer.capacity() >= maxRequestSize) {
+						respond(response("431 Request Header Fields Too Large", "Request too large."));
+						return;
+					}
+					ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+					buffer.flip();
+					larger.put(buffer);
+					buffer = larger;
+					return;
+				}
+
+				// Request line: GET /path?query HTTP/1.1
+				String line = new String(buffer.array(), 0, lineEnd(), OAuth.ascii);
+				String[] parts = line.split(" ");
+				if (parts.length != 3 || !parts[0].equals("GET"))
+					respond(response("405 Method Not Allowed", "Method not allowed."));
+				else
+					respond(redirect(parts[1]));
+				return;
+			}
+
+			channel.write(response);
+			if (!response.hasRemaining()) close();
+		}
+
+		private void respond (byte[] bytes) throws IOException {
+			response = ByteBuffer.wrap(bytes);
+			channel.write(response);
+			if (!response.hasRemaining())
+				close();
+			else
+				key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		private int headerEnd () {
+			byte[] bytes = buffer.array();
+			for (int i = 3, n = buffer.position(); i < n; i++)
+				if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') return i + 1;
+			return -1;
+		}
+
+		private int lineEnd () {
+			byte[] bytes = buffer.array();
+			int i = 0;
+			while (bytes[i] != '\r')
+				i++;
+			return i;
+		}
+
+		void close () {
+			connections.remove(this);
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+import com.esotericsoftware.oauth.OAuth.Token.Snapshot;
+
+/** Refreshes tokens shortly before they expire. A single thread waits on a heap ordered by refresh deadline, so there is no timer
+ * per token. Refreshes are done like {@link OAuth#refreshAccessTokenAsync(Token, Callback)}, so no thread waits for them when the
+ * transport is an {@link AsyncTransport}. */
+class RefreshScheduler implements Runnable {
+	static private final long retryMillis = 30 * 1000;
+
+	private final OAuth oauth;
+	private final String category;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+	private final HashMap<Token, Entry> entries = new HashMap<>();
+	private final Runnable wake = new Runnable() {
+		public void run () {
+			wake();
+		}
+	};
+	private int cancelled;
+	private long nextRefreshNanos;
+	private Clock clock;
+
+	public RefreshScheduler (OAuth oauth, String category) {
+		this.oauth = oauth;
+		this.category = category;
+
+		oauth.newThread(this, "OAuth refresh: " + category).start();
+	}
+
+	public void add (Token token) {
+		lock.lock();
+		try {
+			Entry entry = new Entry(token);
+			Entry old = entries.put(token, entry);
+			if (old != null) cancel(old);
+			Snapshot snapshot = token.getSnapshot();
+			schedule(entry, snapshot, deadline(snapshot, oauth.getClock().millis()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void remove (Token token) {
+		lock.lock();
+		try {
+			Entry entry = entries.remove(token);
+			if (entry != null) cancel(entry);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Causes the scheduler thread to check the time again. */
+	public void wake () {
+		lock.lock();
+		try {
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns a random time within the jitter window before the lead time, so tokens that expire at the same time are not all
+	 * refreshed at the same time. The lead and jitter are limited to a fraction of the remaining lifetime, so a token that lives
+	 * no longer than the lead is refreshed partway through its lifetime rather than immediately. */
+	private long deadline (Snapshot snapshot, long now) {
+		long remainingMillis = snapshot.expirationMillis - now, leadMillis = oauth.refreshLead(remainingMillis);
+		long deadline = snapshot.expirationMillis - leadMillis;
+		long jitterMillis = Math.min(oauth.getRefreshJitterMillis(), (remainingMillis - leadMillis) / 2);
+		if (jitterMillis > 0) deadline -= ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		return deadline;
+	}
+
+	/** Must be called while holding the lock. */
+	private void schedule (Entry entry, Snapshot snapshot, long deadline) {
+		entry.deadline = deadline;
+		entry.leadMillis = snapshot.expirationMillis - deadline;
+		entry.queued = true;
+		queue.add(entry);
+		if (queue.peek() == entry) changed.signal();
+	}
+
+	/** Cancelled entries are left in the queue and discarded when they reach the head, unless they are most of the queue, so
+	 * tokens that are rescheduled often do not grow the queue. Must be called while holding the lock. */
+	private void cancel (Entry entry) {
+		entry.cancelled = true;
+		if (!entry.queued) return;
+		cancelled++;
+		if (cancelled > 64 && cancelled > queue.size() / 2) {
+			ArrayList<Entry> live = new ArrayList<>(queue.size() - cancelled);
+			for (Entry queued : queue) {
+				if (queued.cancelled)
+					queued.queued = false;
+				else
+					live.add(queued);
+			}
+			queue.clear();
+			queue.addAll(live);
+			cancelled = 0;
+		}
+	}
+
+	public void run () {
+		while (true) {
+			Entry entry;
+			lock.lock();
+			try {
+				while (true) {
+					Clock clock = oauth.getClock();
+					if (clock != this.clock) {
+						// Listen for changes so a clock that is advanced manually wakes this thread.
+						if (this.clock != null) this.clock.removeListener(wake);
+						clock.addListener(wake);
+						this.clock = clock;
+					}
+					entry = queue.peek();
+					if (entry == null) {
+						changed.await();
+						continue;
+					}
+					if (entry.cancelled) {
+						queue.poll();
+						entry.queued = false;
+						cancelled--;
+						continue;
+					}
+					long now = clock.millis(), delay = entry.deadline - now;
+					if (delay > 0) {
+						changed.await(delay, TimeUnit.MILLISECONDS);
+						continue;
+					}
+					int maxPerSecond = oauth.getMaxRefreshesPerSecond();
+					if (maxPerSecond > 0) {
+						long nowNanos = now * 1000000, wait = nextRefreshNanos - nowNanos;
+						if (wait > 0) {
+							changed.awaitNanos(wait);
+							continue;
+						}
+						// The clock has millisecond resolution, so up to a millisecond of unused refreshes are allowed at once.
+						nextRefreshNanos = Math.max(nextRefreshNanos, nowNanos - 1000000) + 1000000000L / maxPerSecond;
+					}
+					break;
+				}
+				queue.poll();
+				entry.queued = false;
+				entry.snapshot = entry.token.getSnapshot();
+			} catch (InterruptedException ex) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				oauth.refresh(entry.token, entry.leadMillis, true, entry);
+			} catch (Throwable ex) { // The entry was notified that the refresh failed.
+				if (ERROR) error(category, "Unable to refresh access token.", ex);
+			}
+		}
+	}
+
+	private class Entry implements Callback<Boolean>, Comparable<Entry> {
+		final Token token;
+		long deadline, leadMillis; // The lead includes the jitter chosen for this refresh.
+		Snapshot snapshot; // The token's values when the last refresh started.
+		boolean queued, cancelled;
+
+		Entry (Token token) {
+			this.token = token;
+		}
+
+		public void completed (Boolean result) {
+			rescheduleAfter();
+		}
+
+		public void failed (Throwable ex) { // Logged by the refresh.
+			rescheduleAfter();
+		}
+
+		/** Schedules the next refresh, or a retry if the refresh failed and the token still needs to be refreshed. */
+		void rescheduleAfter () {
+			lock.lock();
+			try {
+				if (entries.get(token) != this) return;
+				Snapshot snapshot = token.getSnapshot();
+				long now = oauth.getClock().millis(), deadline;
+				if (snapshot == this.snapshot && snapshot.expirationMillis - leadMillis <= now) {
+					// Neither this refresh nor another thread updated the token.
+					if (snapshot.refreshToken == null) {
+						entries.remove(token);
+						return;
+					}
+					deadline = now + retryMillis;
+				} else
+					deadline = deadline(snapshot, now);
+				schedule(this, snapshot, deadline);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public int compareTo (Entry other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+}
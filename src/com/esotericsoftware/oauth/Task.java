@@ -0,0 +1,102 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** A future task which notifies {@link Callback callbacks} when it completes. A task can also be completed by using it as a
+ * callback, rather than running it. */
+class Task<T> extends FutureTask<T> implements Callback<T> {
+	static private final Runnable nothing = new Runnable() {
+		public void run () {
+		}
+	};
+
+	private final boolean settable;
+	private ArrayList<Callback<T>> callbacks;
+
+	/** Creates a task that is completed only by {@link #completed(Object)} or {@link #failed(Throwable)}. Running it does
+	 * nothing. */
+	public Task () {
+		super(nothing, null);
+		settable = true;
+	}
+
+	public Task (Callable<T> callable) {
+		super(callable);
+		settable = false;
+	}
+
+	public void run () {
+		if (!settable) super.run();
+	}
+
+	public void completed (T result) {
+		set(result);
+	}
+
+	public void failed (Throwable ex) {
+		setException(ex);
+	}
+
+	/** Notifies the callback when the task completes, or immediately if it has already completed.
+	 * @param callback May be null. */
+	public void addCallback (Callback<T> callback) {
+		if (callback == null) return;
+		synchronized (this) {
+			if (!isDone()) {
+				if (callbacks == null) callbacks = new ArrayList<>(2);
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+
+	protected void done () {
+		ArrayList<Callback<T>> callbacks;
+		synchronized (this) {
+			callbacks = this.callbacks;
+			this.callbacks = null;
+		}
+		if (callbacks != null) {
+			for (Callback<T> callback : callbacks)
+				notify(callback);
+		}
+	}
+
+	private void notify (Callback<T> callback) {
+		T result;
+		try {
+			result = get();
+		} catch (ExecutionException ex) {
+			callback.failed(ex.getCause());
+			return;
+		} catch (CancellationException | InterruptedException ex) {
+			callback.failed(ex);
+			return;
+		}
+		callback.completed(result);
+	}
+}
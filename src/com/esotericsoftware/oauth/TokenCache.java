@@ -0,0 +1,145 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.oauth.OAuth.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Caches values for tokens until they expire, eg exchanged tokens (RFC 8693) or introspection results (RFC 7662). Entries are
+ * keyed by a SHA-256 hash of the token plus a qualifier, such as the audience and scopes, so the tokens are not retained. When
+ * the cache is full, expired entries are removed, then the entries that expire soonest.
+ * @param <V> The cached value type. */
+class TokenCache<V> {
+	private final ConcurrentHashMap<Key, Entry<V>> entries = new ConcurrentHashMap<>();
+	private volatile int maxSize = 10000;
+
+	static private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue () {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	};
+
+	/** @param qualifier Distinguishes values for the same token, may be empty. */
+	static Key key (String token, String qualifier) {
+		return new Key(digests.get().digest(token.getBytes(utf8)), qualifier);
+	}
+
+	/** @param validMillis Entries that expire before this time are not returned.
+	 * @return May be null. */
+	V get (Key key, long validMillis) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) return null;
+		if (entry.expirationMillis >= validMillis) return entry.value;
+		entries.remove(key, entry);
+		return null;
+	}
+
+	void put (Key key, V value, long expirationMillis, long nowMillis) {
+		entries.put(key, new Entry<V>(value, expirationMillis));
+		if (entries.size() > maxSize) evict(nowMillis);
+	}
+
+	/** Removes expired entries, then if still full removes the entries that expire soonest, leaving room so this is not done for
+	 * every put. */
+	private synchronized void evict (long nowMillis) {
+		int maxSize = this.maxSize;
+		if (entries.size() <= maxSize) return;
+		for (Iterator<Entry<V>> iter = entries.values().iterator(); iter.hasNext();)
+			if (iter.next().expirationMillis < nowMillis) iter.remove();
+		int remove = entries.size() - maxSize * 9 / 10;
+		if (remove <= 0) return;
+
+		long[] expirations = new long[entries.size()];
+		int count = 0;
+		for (Entry<V> entry : entries.values()) {
+			if (count == expirations.length) break;
+			expirations[count++] = entry.expirationMillis;
+		}
+		Arrays.sort(expirations, 0, count);
+		long cutoff = expirations[Math.min(remove, count) - 1];
+		for (Iterator<Entry<V>> iter = entries.values().iterator(); iter.hasNext() && remove > 0;) {
+			if (iter.next().expirationMillis <= cutoff) {
+				iter.remove();
+				remove--;
+			}
+		}
+	}
+
+	void clear () {
+		entries.clear();
+	}
+
+	int size () {
+		return entries.size();
+	}
+
+	int getMaxSize () {
+		return maxSize;
+	}
+
+	void setMaxSize (int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be > 0: " + maxSize);
+		this.maxSize = maxSize;
+	}
+
+	static private class Entry<V> {
+		final V value;
+		final long expirationMillis;
+
+		Entry (V value, long expirationMillis) {
+			this.value = value;
+			this.expirationMillis = expirationMillis;
+		}
+	}
+
+	static class Key {
+		final byte[] hash;
+		final String qualifier;
+		private final int hashCode;
+
+		Key (byte[] hash, String qualifier) {
+			this.hash = hash;
+			this.qualifier = qualifier;
+			// The first bytes of the hash are already uniformly distributed.
+			int hashCode = (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+			this.hashCode = 31 * hashCode + qualifier.hashCode();
+		}
+
+		public int hashCode () {
+			return hashCode;
+		}
+
+		public boolean equals (Object object) {
+			if (object == this) return true;
+			if (!(object instanceof Key)) return false;
+			Key other = (Key)object;
+			return hashCode == other.hashCode && Arrays.equals(hash, other.hash) && qualifier.equals(other.qualifier);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.oauth.OAuth.*;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.esotericsoftware.oauth.Transport.Response;
+
+/** Validates tokens using an introspection endpoint (RFC 7662). Requests are made with the {@link OAuth#getTransport() transport}
+ * and client credentials of an {@link OAuth} instance, so they share its connection pool.
+ * <p>
+ * Active results are cached until the token's exp, and inactive results for a short time, keyed by a hash of the token so tokens
+ * are not retained. Concurrent lookups of the same token share a single request. */
+public class TokenIntrospector {
+	private final OAuth oauth;
+	private final String category, introspectionURL;
+	private final TokenCache<Introspection> cache = new TokenCache<>();
+	private final ConcurrentHashMap<TokenCache.Key, Task<Introspection>> requests = new ConcurrentHashMap<>();
+	private volatile long inactiveCacheMillis = 10 * 1000;
+
+	public TokenIntrospector (OAuth oauth, String introspectionURL) {
+		if (oauth == null) throw new IllegalArgumentException("oauth cannot be null.");
+		if (introspectionURL == null) throw new IllegalArgumentException("introspectionURL cannot be null.");
+		this.oauth = oauth;
+		category = oauth.getCategory();
+		this.introspectionURL = introspectionURL;
+	}
+
+	/** Returns the cached result for the token, or requests it from the introspection endpoint.
+	 * @throws IOException if the request failed. Failures are not cached. */
+	public Introspection introspect (final String token) throws IOException {
+		if (token == null) throw new IllegalArgumentException("token cannot be null.");
+		final TokenCache.Key key = TokenCache.key(token, "");
+		Introspection introspection = cache.get(key, oauth.getClock().millis());
+		if (introspection != null) return introspection;
+
+		Task<Introspection> request = new Task<Introspection>(new Callable<Introspection>() {
+			public Introspection call () throws IOException {
+				// Another thread may have cached a result between the cache check and this request starting.
+				long requestMillis = oauth.getClock().millis();
+				Introspection introspection = cache.get(key, requestMillis);
+				if (introspection != null) return introspection;
+				if (TRACE) trace(category, "Introspecting token.");
+				Response response = oauth.getTransport().post(introspectionURL, oauth.introspectionBody(token));
+				return introspected(key, requestMillis, response);
+			}
+		}) {
+			protected void done () {
+				requests.remove(key, this);
+				super.done();
+			}
+		};
+		Task<Introspection> existing = requests.putIfAbsent(key, request);
+		if (existing != null)
+			request = existing;
+		else
+			request.run();
+		try {
+			return request.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for token introspection.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** Returns true if the token is active. Same as {@link #introspect(String)}, except a failed request is logged and the token
+	 * is considered inactive. */
+	public boolean isActive (String token) {
+		try {
+			return introspect(token).isActive(oauth.getClock());
+		} catch (IOException ex) {
+			if (ERROR) error(category, "Error introspecting token.", ex);
+			return false;
+		}
+	}
+
+	private Introspection introspected (TokenCache.Key key, long requestMillis, Response response) throws IOException {
+		if (response.dateMillis != 0) oauth.updateClockSkew(requestMillis, response.dateMillis);
+		if (!response.isSuccess()) {
+			String body = new String(response.body, utf8).trim();
+			throw new IOException(response + (body.length() > 0 ? "\n" + body : ""));
+		}
+		TokenResponse fields = TokenResponse.parse(response.body, TokenResponse.readIntrospection | TokenResponse.readScope);
+
+		// The exp is the server's time, so it is adjusted for the clock skew.
+		long expirationMillis = fields.hasExp ? fields.exp * 1000 - oauth.getClockSkewMillis() : Long.MAX_VALUE;
+		Introspection introspection = new Introspection(fields.active, fields.scope, fields.clientID, fields.username,
+			fields.subject, expirationMillis);
+
+		long now = oauth.getClock().millis(), cacheMillis = now + inactiveCacheMillis;
+		// An active token without an exp is cached only as long as an inactive one, since it may be revoked at any time.
+		if (fields.active && fields.hasExp) cacheMillis = expirationMillis;
+		if (cacheMillis > now) cache.put(key, introspection, cacheMillis, now);
+		if (DEBUG) debug(category, "Token introspected: " + (fields.active ? "active" : "inactive"));
+		return introspection;
+	}
+
+	/** Discards the cached results. */
+	public void clear () {
+		cache.clear();
+	}
+
+	public long getInactiveCacheMillis () {
+		return inactiveCacheMillis;
+	}
+
+	/** Sets how long inactive results are cached, and active results without an exp. Default is 10 seconds. */
+	public void setInactiveCacheMillis (long inactiveCacheMillis) {
+		this.inactiveCacheMillis = inactiveCacheMillis;
+	}
+
+	public int getCacheSize () {
+		return cache.getMaxSize();
+	}
+
+	/** Sets the maximum number of results to cache. Default is 10000. */
+	public void setCacheSize (int cacheSize) {
+		cache.setMaxSize(cacheSize);
+	}
+
+	public String getIntrospectionURL () {
+		return introspectionURL;
+	}
+
+	public OAuth getOAuth () {
+		return oauth;
+	}
+
+	/** The result of introspecting a token. */
+	static public class Introspection {
+		public final boolean active;
+		/** May be null. */
+		public final String scope, clientID, username, subject;
+		/** When the token expires, or Long.MAX_VALUE if the server did not specify. */
+		public final long expirationMillis;
+
+		public Introspection (boolean active, String scope, String clientID, String username, String subject,
+			long expirationMillis) {
+			this.active = active;
+			this.scope = scope;
+			this.clientID = clientID;
+			this.username = username;
+			this.subject = subject;
+			this.expirationMillis = expirationMillis;
+		}
+
+		/** Returns true if the token was active and has not since expired. */
+		public boolean isActive (Clock clock) {
+			return active && expirationMillis >= clock.millis();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+import com.esotericsoftware.oauth.OAuth.Token.Snapshot;
+
+/** Stores a token for each key, such as a user or tenant ID, and uses an {@link OAuth} instance to authorize and refresh them.
+ * Lookups do not lock and updates lock only a segment of the map, so many threads can use the registry concurrently.
+ * @param <K> The key type, which must implement hashCode and equals. */
+public class TokenRegistry<K> {
+	private final OAuth oauth;
+	private final ConcurrentHashMap<K, Token> tokens;
+	private final ConcurrentHashMap<K, FutureTask<Boolean>> authorizations = new ConcurrentHashMap<>();
+	private volatile boolean refreshAhead;
+
+	public TokenRegistry (OAuth oauth) {
+		this(oauth, 16, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @param concurrencyLevel The estimated number of threads updating the registry concurrently. */
+	public TokenRegistry (OAuth oauth, int initialCapacity, int concurrencyLevel) {
+		this.oauth = oauth;
+		tokens = new ConcurrentHashMap<>(initialCapacity, 0.75f, concurrencyLevel);
+	}
+
+	/** @return May be null. */
+	public Token get (K key) {
+		return tokens.get(key);
+	}
+
+	/** Stores the token for the key, replacing any existing token.
+	 * @return The previous token, or null. */
+	public Token put (K key, Token token) {
+		Token old = tokens.put(key, token);
+		if (old != null && old != token) oauth.cancelRefresh(old);
+		if (refreshAhead) oauth.scheduleRefresh(token);
+		return old;
+	}
+
+	/** @return The removed token, or null. */
+	public Token remove (K key) {
+		Token token = tokens.remove(key);
+		if (token != null) oauth.cancelRefresh(token);
+		return token;
+	}
+
+	/** Creates a token for the key if there isn't one, then calls {@link OAuth#authorize(Token)}. If multiple threads authorize
+	 * the same key at the same time, only one obtains the access token and the others wait for it.
+	 * @return true when a new access token was obtained. */
+	public boolean authorize (final K key) throws IOException {
+		Token token = tokens.get(key);
+		if (token != null && token.getSnapshot().accessToken != null) return false;
+
+		FutureTask<Boolean> authorization = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call () throws IOException {
+				Token token = tokens.get(key);
+				if (token == null) {
+					token = new Token();
+					Token existing = tokens.putIfAbsent(key, token);
+					if (existing != null) token = existing;
+				}
+				if (!oauth.authorize(token)) return false;
+				if (refreshAhead) oauth.scheduleRefresh(token);
+				return true;
+			}
+		});
+		FutureTask<Boolean> existing = authorizations.putIfAbsent(key, authorization);
+		if (existing != null)
+			authorization = existing;
+		else {
+			try {
+				authorization.run();
+			} finally {
+				authorizations.remove(key, authorization);
+			}
+		}
+		try {
+			return authorization.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for authorization.", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/** Calls {@link OAuth#refreshAccessToken(Token)} for the key's token.
+	 * @return true if the token was refreshed, false if it did not need to be refreshed, the refresh failed, or there is no token
+	 *         for the key. */
+	public boolean refreshAccessToken (K key) {
+		Token token = tokens.get(key);
+		if (token == null) return false;
+		return oauth.refreshAccessToken(token);
+	}
+
+	/** Refreshes the key's token, if necessary, and returns the access token.
+	 * @return May be null if there is no token for the key or it has not been authorized. */
+	public String getAccessToken (K key) {
+		Token token = tokens.get(key);
+		if (token == null) return null;
+		oauth.refreshAccessToken(token);
+		return token.getSnapshot().accessToken;
+	}
+
+	/** Removes the tokens that have expired and have no refresh token.
+	 * @return The number of tokens removed. */
+	public int evictExpired () {
+		int count = 0;
+		for (Entry<K, Token> entry : tokens.entrySet()) {
+			Token token = entry.getValue();
+			Snapshot snapshot = token.getSnapshot();
+			if (snapshot.isExpired(oauth.getClock()) && snapshot.refreshToken == null && tokens.remove(entry.getKey(), token)) {
+				oauth.cancelRefresh(token);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public int size () {
+		return tokens.size();
+	}
+
+	/** @return A live, unmodifiable view of the tokens, eg for saving them. */
+	public Map<K, Token> getTokens () {
+		return Collections.unmodifiableMap(tokens);
+	}
+
+	public OAuth getOAuth () {
+		return oauth;
+	}
+
+	/** When true, tokens added to the registry are refreshed in the background before they expire using
+	 * {@link OAuth#scheduleRefresh(Token)}. Tokens already in the registry are not affected. Default is false. */
+	public void setRefreshAhead (boolean refreshAhead) {
+		this.refreshAhead = refreshAhead;
+	}
+
+	public boolean getRefreshAhead () {
+		return refreshAhead;
+	}
+}
@@ -0,0 +1,428 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import static com.esotericsoftware.oauth.OAuth.*;
+
+import java.io.IOException;
+
+import com.esotericsoftware.jsonbeans.JsonReader;
+import com.esotericsoftware.jsonbeans.JsonValue;
+
+/** The fields of a token response, extracted in a single pass over the UTF-8 bytes without building a {@link JsonValue} tree. Only
+ * top level fields are read, and other values, including nested objects and arrays, are skipped without being decoded. A body
+ * the scanner cannot read is given to {@link JsonReader}, which is lenient and reports where the JSON is invalid. */
+class TokenResponse {
+	/** Flags for the optional fields to decode. */
+	static final int readScope = 1, readTokenType = 2, readIdToken = 4, readError = 8, readDevice = 16, readIntrospection = 32;
+
+	static private final byte[] accessTokenKey = key("access_token"), refreshTokenKey = key("refresh_token"),
+		expiresInKey = key("expires_in"), expiresAtKey = key("expires_at"), scopeKey = key("scope"),
+		tokenTypeKey = key("token_type"), idTokenKey = key("id_token"), errorKey = key("error"),
+		errorDescriptionKey = key("error_description"), deviceCodeKey = key("device_code"), userCodeKey = key("user_code"),
+		verificationURIKey = key("verification_uri"), verificationURLKey = key("verification_url"),
+		verificationURICompleteKey = key("verification_uri_complete"), intervalKey = key("interval"), activeKey = key("active"),
+		expKey = key("exp"), subKey = key("sub"), clientIDKey = key("client_id"), usernameKey = key("username");
+
+	String accessToken, refreshToken, scope, tokenType, idToken;
+	long expiresIn, expiresAt;
+	boolean hasExpiresIn, hasExpiresAt;
+	/** Error response fields, read with {@link #readError}. */
+	String error, errorDescription;
+	/** Device authorization response fields (RFC 8628), read with {@link #readDevice}. Some servers send verification_url. */
+	String deviceCode, userCode, verificationURI, verificationURIComplete;
+	long interval;
+	boolean hasInterval;
+	/** Introspection response fields (RFC 7662), read with {@link #readIntrospection}. */
+	boolean active, hasExp;
+	long exp;
+	String subject, clientID, username;
+
+	/** @param fields The optional fields to decode, eg {@link #readScope}.
+	 * @throws IOException if the body is not a JSON object. */
+	static TokenResponse parse (byte[] body, int fields) throws IOException {
+		TokenResponse response = new TokenResponse();
+		try {
+			new Scanner(body).object(response, fields);
+			return response;
+		} catch (IllegalArgumentException ignored) {
+		}
+
+		// The scanner only reads strict JSON. JsonReader also reads JSON variants, else its exception describes the error.
+		TokenResponse fallback = new TokenResponse();
+		JsonValue json;
+		try {
+			json = new JsonReader().parse(new String(body, utf8));
+		} catch (RuntimeException ex) {
+			throw new IOException("Invalid token response: " + new String(body, utf8).trim(), ex);
+		}
+		if (json == null || !json.isObject()) throw new IOException("Invalid token response: " + new String(body, utf8).trim());
+		fallback.accessToken = json.getString("access_token", null);
+		fallback.refreshToken = json.getString("refresh_token", null);
+		if ((fields & readScope) != 0) fallback.scope = json.getString("scope", null);
+		if ((fields & readTokenType) != 0) fallback.tokenType = json.getString("token_type", null);
+		if ((fields & readIdToken) != 0) fallback.idToken = json.getString("id_token", null);
+		if ((fields & readError) != 0) {
+			fallback.error = json.getString("error", null);
+			fallback.errorDescription = json.getString("error_description", null);
+		}
+		if ((fields & readDevice) != 0) {
+			fallback.deviceCode = json.getString("device_code", null);
+			fallback.userCode = json.getString("user_code", null);
+			fallback.verificationURI = json.getString("verification_uri", json.getString("verification_url", null));
+			fallback.verificationURIComplete = json.getString("verification_uri_complete", null);
+			JsonValue interval = json.get("interval");
+			if (interval != null && !interval.isNull()) {
+				fallback.interval = asLong(interval, body);
+				fallback.hasInterval = true;
+			}
+		}
+		if ((fields & readIntrospection) != 0) {
+			fallback.active = json.getBoolean("active", false);
+			fallback.subject = json.getString("sub", null);
+			fallback.clientID = json.getString("client_id", null);
+			fallback.username = json.getString("username", null);
+			JsonValue exp = json.get("exp");
+			if (exp != null && !exp.isNull()) {
+				fallback.exp = asLong(exp, body);
+				fallback.hasExp = true;
+			}
+		}
+		JsonValue value = json.get("expires_in");
+		if (value != null && !value.isNull()) {
+			fallback.expiresIn = asLong(value, body);
+			fallback.hasExpiresIn = true;
+		}
+		value = json.get("expires_at");
+		if (value != null && !value.isNull()) {
+			fallback.expiresAt = asLong(value, body);
+			fallback.hasExpiresAt = true;
+		}
+		return fallback;
+	}
+
+	/** @throws IOException if the value is not a number. */
+	static private long asLong (JsonValue value, byte[] body) throws IOException {
+		try {
+			return value.asLong();
+		} catch (RuntimeException ex) {
+			throw new IOException("Invalid token response: " + new String(body, utf8).trim(), ex);
+		}
+	}
+
+	static private byte[] key (String name) {
+		return name.getBytes(ascii);
+	}
+
+	/** Reads strict JSON from UTF-8 bytes. Throws IllegalArgumentException for anything unexpected. */
+	static private class Scanner {
+		private final byte[] bytes;
+		private int p;
+
+		Scanner (byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		void object (TokenResponse response, int fields) {
+			whitespace();
+			expect('{');
+			whitespace();
+			if (peek() == '}') {
+				p++;
+				end();
+				return;
+			}
+			while (true) {
+				whitespace();
+				expect('"');
+				int keyStart = p, keyEnd = stringEnd();
+				p = keyEnd + 1;
+				whitespace();
+				expect(':');
+				whitespace();
+
+				if (keyIs(keyStart, keyEnd, accessTokenKey))
+					response.accessToken = string();
+				else if (keyIs(keyStart, keyEnd, refreshTokenKey))
+					response.refreshToken = string();
+				else if (keyIs(keyStart, keyEnd, expiresInKey)) {
+					response.hasExpiresIn = !isNull();
+					response.expiresIn = number();
+				} else if (keyIs(keyStart, keyEnd, expiresAtKey)) {
+					response.hasExpiresAt = !isNull();
+					response.expiresAt = number();
+				} else if ((fields & readScope) != 0 && keyIs(keyStart, keyEnd, scopeKey))
+					response.scope = string();
+				else if ((fields & readTokenType) != 0 && keyIs(keyStart, keyEnd, tokenTypeKey))
+					response.tokenType = string();
+				else if ((fields & readIdToken) != 0 && keyIs(keyStart, keyEnd, idTokenKey))
+					response.idToken = string();
+				else if ((fields & readError) != 0 && keyIs(keyStart, keyEnd, errorKey))
+					response.error = string();
+				else if ((fields & readError) != 0 && keyIs(keyStart, keyEnd, errorDescriptionKey))
+					response.errorDescription = string();
+				else if (!((fields & readDevice) != 0 && device(response, keyStart, keyEnd))
+					&& !((fields & readIntrospection) != 0 && introspection(response, keyStart, keyEnd))) //
+					skip();
+
+				whitespace();
+				byte b = next();
+				if (b == '}') break;
+				if (b != ',') throw new IllegalArgumentException();
+			}
+			end();
+		}
+
+		/** Reads a device authorization field.
+		 * @return false if the key is not a device authorization field. */
+		private boolean device (TokenResponse response, int keyStart, int keyEnd) {
+			if (keyIs(keyStart, keyEnd, deviceCodeKey))
+				response.deviceCode = string();
+			else if (keyIs(keyStart, keyEnd, userCodeKey))
+				response.userCode = string();
+			else if (keyIs(keyStart, keyEnd, verificationURIKey) || keyIs(keyStart, keyEnd, verificationURLKey))
+				response.verificationURI = string();
+			else if (keyIs(keyStart, keyEnd, verificationURICompleteKey))
+				response.verificationURIComplete = string();
+			else if (keyIs(keyStart, keyEnd, intervalKey)) {
+				response.hasInterval = !isNull();
+				response.interval = number();
+			} else
+				return false;
+			return true;
+		}
+
+		/** Reads an introspection field.
+		 * @return false if the key is not an introspection field. */
+		private boolean introspection (TokenResponse response, int keyStart, int keyEnd) {
+			if (keyIs(keyStart, keyEnd, activeKey))
+				response.active = bool();
+			else if (keyIs(keyStart, keyEnd, expKey)) {
+				response.hasExp = !isNull();
+				response.exp = number();
+			} else if (keyIs(keyStart, keyEnd, subKey))
+				response.subject = string();
+			else if (keyIs(keyStart, keyEnd, clientIDKey))
+				response.clientID = string();
+			else if (keyIs(keyStart, keyEnd, usernameKey))
+				response.username = string();
+			else
+				return false;
+			return true;
+		}
+
+		/** Keys with escapes never match, so they are skipped. */
+		private boolean keyIs (int start, int end, byte[] key) {
+			if (end - start != key.length) return false;
+			for (int i = 0, n = key.length; i < n; i++)
+				if (bytes[start + i] != key[i]) return false;
+			return true;
+		}
+
+		/** @return May be null. */
+		private String string () {
+			if (isNull()) {
+				p += 4;
+				return null;
+			}
+			expect('"');
+			int start = p, end = stringEnd();
+			p = end + 1;
+			for (int i = start; i < end; i++)
+				if (bytes[i] == '\\') return unescape(start, end);
+			return new String(bytes, start, end - start, utf8);
+		}
+
+		private String unescape (int start, int end) {
+			StringBuilder buffer = new StringBuilder(end - start);
+			int run = start;
+			for (int i = start; i < end; i++) {
+				if (bytes[i] != '\\') continue;
+				buffer.append(new String(bytes, run, i - run, utf8));
+				byte b = bytes[++i];
+				switch (b) {
+				case 'b':
+					buffer.append('\b');
+					break;
+				case 'f':
+					buffer.append('\f');
+					break;
+				case 'n':
+					buffer.append('\n');
+					break;
+				case 'r':
+					buffer.append('\r');
+					break;
+				case 't':
+					buffer.append('\t');
+					break;
+				case 'u':
+					if (i + 4 >= end) throw new IllegalArgumentException();
+					buffer.append((char)Integer.parseInt(new String(bytes, i + 1, 4, ascii), 16));
+					i += 4;
+					break;
+				default: // " \ /
+					buffer.append((char)b);
+				}
+				run = i + 1;
+			}
+			buffer.append(new String(bytes, run, end - run, utf8));
+			return buffer.toString();
+		}
+
+		/** Reads a number, or a string containing a number, as a long. Fractions are truncated.
+		 * @return 0 for null. */
+		private long number () {
+			if (isNull()) {
+				p += 4;
+				return 0;
+			}
+			if (peek() == '"') {
+				String value = string().trim();
+				try {
+					return Long.parseLong(value);
+				} catch (NumberFormatException ex) {
+					return (long)Double.parseDouble(value);
+				}
+			}
+			int start = p;
+			boolean integer = true;
+			while (p < bytes.length) {
+				byte b = bytes[p];
+				if (b == '.' || b == 'e' || b == 'E')
+					integer = false;
+				else if ((b < '0' || b > '9') && b != '-' && b != '+') //
+					break;
+				p++;
+			}
+			if (p == start) throw new IllegalArgumentException();
+			if (integer && p - start < 19) {
+				long value = 0;
+				boolean negative = bytes[start] == '-';
+				int digits = negative ? start + 1 : start;
+				if (digits == p) throw new IllegalArgumentException(); // A sign without digits.
+				for (int i = digits; i < p; i++) {
+					byte b = bytes[i];
+					if (b < '0' || b > '9') throw new IllegalArgumentException();
+					value = value * 10 + (b - '0');
+				}
+				return negative ? -value : value;
+			}
+			return (long)Double.parseDouble(new String(bytes, start, p - start, ascii));
+		}
+
+		/** Reads true, false, or a string containing true or false.
+		 * @return false for null. */
+		private boolean bool () {
+			if (peek() == '"') return "true".equalsIgnoreCase(string());
+			if (p + 3 < bytes.length && bytes[p] == 't' && bytes[p + 1] == 'r' && bytes[p + 2] == 'u' && bytes[p + 3] == 'e') {
+				p += 4;
+				return true;
+			}
+			if (isNull()) {
+				p += 4;
+				return false;
+			}
+			if (p + 4 < bytes.length && bytes[p] == 'f' && bytes[p + 1] == 'a' && bytes[p + 2] == 'l' && bytes[p + 3] == 's'
+				&& bytes[p + 4] == 'e') {
+				p += 5;
+				return false;
+			}
+			throw new IllegalArgumentException();
+		}
+
+		private boolean isNull () {
+			return p + 3 < bytes.length && bytes[p] == 'n' && bytes[p + 1] == 'u' && bytes[p + 2] == 'l' && bytes[p + 3] == 'l';
+		}
+
+		/** Skips any value without decoding it. */
+		private void skip () {
+			int depth = 0;
+			do {
+				byte b = next();
+				switch (b) {
+				case '"':
+					p = stringEnd() + 1;
+					break;
+				case '{':
+				case '[':
+					depth++;
+					break;
+				case '}':
+				case ']':
+					if (--depth < 0) throw new IllegalArgumentException();
+					break;
+				case ',':
+				case ':':
+					if (depth == 0) throw new IllegalArgumentException();
+					break;
+				case ' ':
+				case '\t':
+				case '\r':
+				case '\n':
+					break;
+				default: // Number, true, false, or null.
+					while (p < bytes.length) {
+						b = bytes[p];
+						if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n') break;
+						p++;
+					}
+				}
+			} while (depth > 0);
+		}
+
+		/** @return The index of the closing quote of the string starting at the current position. */
+		private int stringEnd () {
+			for (int i = p, n = bytes.length; i < n; i++) {
+				byte b = bytes[i];
+				if (b == '"') return i;
+				if (b == '\\') i++;
+			}
+			throw new IllegalArgumentException();
+		}
+
+		private void whitespace () {
+			while (p < bytes.length) {
+				byte b = bytes[p];
+				if (b != ' ' && b != '\t' && b != '\r' && b != '\n') break;
+				p++;
+			}
+		}
+
+		private void end () {
+			whitespace();
+			if (p != bytes.length) throw new IllegalArgumentException();
+		}
+
+		private void expect (char c) {
+			if (next() != c) throw new IllegalArgumentException();
+		}
+
+		private byte peek () {
+			if (p >= bytes.length) throw new IllegalArgumentException();
+			return bytes[p];
+		}
+
+		private byte next () {
+			if (p >= bytes.length) throw new IllegalArgumentException();
+			return bytes[p++];
+		}
+	}
+}
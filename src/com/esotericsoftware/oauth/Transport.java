@@ -0,0 +1,57 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.io.IOException;
+
+/** Makes the HTTP requests for {@link OAuth}. Implementations must be safe to use from multiple threads.
+ * @see HttpClientTransport */
+public interface Transport {
+	/** POSTs the body with the application/x-www-form-urlencoded content type.
+	 * @return The response, whatever the status code.
+	 * @throws IOException if the request could not be made or the response could not be read. */
+	public Response post (String url, byte[] body) throws IOException;
+
+	static public class Response {
+		/** The HTTP status code. */
+		public final int status;
+		/** The HTTP reason phrase. May be null. */
+		public final String reason;
+		/** Never null. */
+		public final byte[] body;
+		/** The Date header value in milliseconds since the epoch, or 0 if there was none. */
+		public final long dateMillis;
+
+		public Response (int status, String reason, byte[] body, long dateMillis) {
+			this.status = status;
+			this.reason = reason;
+			this.body = body;
+			this.dateMillis = dateMillis;
+		}
+
+		public boolean isSuccess () {
+			return status >= 200 && status < 300;
+		}
+
+		public String toString () {
+			return reason == null ? "HTTP " + status : "HTTP " + status + " " + reason;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2017, Nathan Sweet
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+ * conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of Esoteric Software nor the names of its contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING,
+ * BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+package com.esotericsoftware.oauth;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.esotericsoftware.oauth.OAuth.Token;
+
+/** Checks that scheduled refreshes are spread across the jitter window. A fake clock is advanced a minute at a time, so the test
+ * runs in about a second. Failures throw an exception. */
+public class RefreshSchedulerTest {
+	static final long minute = 60 * 1000;
+	static final int tokens = 1000, windowMinutes = 10;
+
+	public static void main (String[] args) throws Exception {
+		final FakeClock clock = new FakeClock();
+		final long start = clock.millis(), expiration = start + 60 * minute;
+		final AtomicIntegerArray refreshesPerMinute = new AtomicIntegerArray(60);
+
+		OAuth oauth = new OAuth("test", "clientID", "redirectURL", "authorizeURL", "accessTokenURL", "scopes", new Transport() {
+			public Response post (String url, byte[] body) {
+				refreshesPerMinute.incrementAndGet((int)((clock.millis() - start) / minute));
+				return new Response(200, "OK", "{\"access_token\":\"new\",\"expires_in\":3600}".getBytes(OAuth.utf8), 0);
+			}
+		});
+		oauth.setClientSecret("clientSecret");
+		oauth.setClock(clock);
+		oauth.setRefreshLeadMillis(5 * minute);
+		oauth.setRefreshJitterMillis(windowMinutes * minute);
+
+		for (int i = 0; i < tokens; i++) {
+			Token token = new Token();
+			token.set("old", "refresh" + i, expiration);
+			oauth.scheduleRefresh(token);
+		}
+
+		// The window is the 10 minutes before the 5 minute lead, so refreshes are due from minute 45 to 55.
+		clock.set(start + 44 * minute);
+		int refreshed = waitForRefreshes(refreshesPerMinute);
+		if (refreshed != 0) throw new RuntimeException("Refreshed before the window: " + refreshed);
+		for (int i = 45; i <= 55; i++) {
+			clock.set(start + i * minute);
+			waitForRefreshes(refreshesPerMinute);
+		}
+
+		int total = 0, expected = tokens / windowMinutes;
+		for (int i = 0; i < 60; i++) {
+			int count = refreshesPerMinute.get(i);
+			total += count;
+			if (count > 0) System.out.println("Minute " + i + ": " + count);
+			if (i < 45 || i > 55) {
+				if (count != 0) throw new RuntimeException("Refreshed outside the window at minute " + i + ": " + count);
+			} else if (i > 45 && (count < expected / 2 || count > expected * 2)) {
+				// Each minute in the window should have about the same number of refreshes. Refreshes due during a minute are done when
+				// the clock is set to the end of it, so minute 45 has only the refreshes due at exactly that time.
+				throw new RuntimeException("Refreshes are not spread across the window, minute " + i + ": " + count);
+			}
+		}
+		if (total != tokens) throw new RuntimeException("Expected " + tokens + " refreshes: " + total);
+		System.out.println("Passed.");
+		System.exit(0);
+	}
+
+	/** Waits until no refreshes have happened for a short time.
+	 * @return The number of refreshes. */
+	static int waitForRefreshes (AtomicIntegerArray refreshesPerMinute) throws InterruptedException {
+		int last = -1;
+		while (true) {
+			Thread.sleep(50);
+			int total = 0;
+			for (int i = 0, n = refreshesPerMinute.length(); i < n; i++)
+				total += refreshesPerMinute.get(i);
+			if (total == last) return total;
+			last = total;
+		}
+	}
+
+	static class FakeClock extends Clock {
+		private volatile long millis = 1500000000000L;
+
+		public long millis () {
+			return millis;
+		}
+
+		public void set (long millis) {
+			this.millis = millis;
+			changed();
+		}
+	}
+}